@@ -1,12 +1,42 @@
 package controllers;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.StreamConverters;
+import akka.util.ByteString;
+
+import play.Configuration;
+import play.Logger;
+import play.api.http.MediaRange;
+import play.libs.EventSource;
+import play.libs.Json;
 import play.mvc.Controller;
+import play.mvc.Http;
 import play.mvc.Result;
 import play.routing.JavaScriptReverseRouter;
+import services.PhaseTimer;
+import services.search.BinaryResultWriter;
 import services.search.DocumentSearcher;
+import services.search.PapersIndexSearcher;
+import services.search.SearchEvents;
+import services.search.SearchExecutors;
+import services.search.SearchPage;
+import services.search.SearchResult;
 import views.html.index;
 
 /**
@@ -15,11 +45,31 @@ import views.html.index;
  */
 public class HomeController extends Controller {
 	
+	private static final String SERVER_TIMING = "Server-Timing";
+	
+	/**
+	 * Writes a result to the response body
+	 */
+	@FunctionalInterface
+	private interface ResultWriter {
+		void write(OutputStream out) throws IOException;
+	}
+	
 	/**
 	 * IndexSearcher for documents in database
 	 */
 	private final DocumentSearcher docSearcher;
 	
+	/**
+	 * Executors for running searches
+	 */
+	private final SearchExecutors executors;
+	
+	/**
+	 * Searches slower than this (in milliseconds) are logged with their phases
+	 */
+	private final long slowThreshold;
+	
 	//private final PapersIndexer indexer;
 	
 	/**
@@ -28,8 +78,11 @@ public class HomeController extends Controller {
 //	private final FormFactory formFactory;
 	
 	@Inject
-	public HomeController(@Named("docSearcher") DocumentSearcher docSearcher) { //, PapersIndexer indexer) {
+	public HomeController(@Named("docSearcher") DocumentSearcher docSearcher, SearchExecutors executors,
+			Configuration configuration) { //, PapersIndexer indexer) {
 		this.docSearcher = docSearcher;
+		this.executors = executors;
+		this.slowThreshold = configuration.getMilliseconds("search.timing.slowThreshold", 2000L);
 //		this.formFactory = formFactory;
 		//this.indexer = indexer;
 	}
@@ -45,22 +98,249 @@ public class HomeController extends Controller {
     }
    
     /**
-     * Searches for user request term. 
+     * Searches for user request term. The search runs on 
+     * {@link SearchExecutors}, so HTTP threads are not blocked
+     * by clustering or remote searches. The result is streamed
+     * as a chunked Json response or, if the client accepts it, as a
+     * compact binary frame (see {@link BinaryResultWriter}). Responses
+     * vary with the <code>Accept</code> header, so caches keep both formats.
+     * <p>The duration of each search phase is sent in the <code>Server-Timing</code>
+     * header and, in debug mode, in the <code>timings</code> field of the Json.
+     * Result serialization is timed after the header is sent, so it is only
+     * logged, for searches slower than <code>search.timing.slowThreshold</code>.</p>
+     * <p>Results of the local index can be drilled down with <code>filter</code> 
+     * parameters (<code>field:value</code>, e.g. <code>filter=year:2010</code>) 
+     * and hits counted by facet value, in the <code>facets</code> field of the Json.
+     * Counting facets needs every hit: with early termination by static rank 
+     * enabled, hits of searches with facets are exact and hits of searches 
+     * without facets are approximate.</p>
      * @param term the search term
+     * @param debug whether to add search phases timings to the Json
+     * @param facets whether to count hits by year, journal and affiliation
      * @return Play result as Json
      */
-    public Result search(String term){
-    	String jsonResult;
-		try {
-			jsonResult = docSearcher.search(term, false, 100);
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return internalServerError("Can't search for documents");
-		}
-    	return ok(jsonResult).as("application/json");
+    public CompletionStage<Result> search(String term, boolean debug, boolean facets){
+    	final PhaseTimer timer = new PhaseTimer();
+    	final String mediaType = preferredMediaType();
+    	final Map<String, List<String>> filters = facetFilters();
+    	if (filters == null)
+    		return CompletableFuture.completedFuture(badRequest("Filters must be field:value"));
+    	if ((facets || !filters.isEmpty()) && !(docSearcher instanceof PapersIndexSearcher))
+    		return CompletableFuture.completedFuture(status(NOT_IMPLEMENTED, "Facets are not supported"));
+    	CompletionStage<SearchResult> searchResult;
+    	try {
+    		if (facets || !filters.isEmpty())
+    			searchResult = ((PapersIndexSearcher) docSearcher).searchAsync(term, filters, facets, false, 100, 
+    					executors, timer);
+    		else
+    			searchResult = docSearcher.searchAsync(term, false, 100, executors, timer);
+    	} catch (RejectedExecutionException e) {
+    		return CompletableFuture.completedFuture(
+    				status(SERVICE_UNAVAILABLE, "Too many searches in progress, try again later"));
+    	}
+    	return searchResult.handle((result, e) -> {
+    		if (e != null){
+    			Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+    			if (cause instanceof RejectedExecutionException)
+    				return status(SERVICE_UNAVAILABLE, "Too many searches in progress, try again later");
+    			if (cause instanceof IllegalArgumentException)
+    				return badRequest(cause.getMessage());
+    			Logger.error("Can't search for documents", cause);
+    			return internalServerError("Can't search for documents");
+    		}
+    		if (result == null)
+    			return notFound("No documents found").withHeader(SERVER_TIMING, timer.toServerTiming())
+    					.withHeader(VARY, ACCEPT);
+    		ResultWriter writer;
+    		if (mediaType.equals(BinaryResultWriter.MEDIA_TYPE))
+    			writer = out -> new BinaryResultWriter(false).write(result, out);
+    		else if (mediaType.equals(BinaryResultWriter.MEDIA_TYPE_QUANTIZED))
+    			writer = out -> new BinaryResultWriter(true).write(result, out);
+    		else if (debug){
+    			Map<String, Double> timings = timer.getPhases();
+    			timings.put("total", timer.getElapsed());
+    			writer = out -> result.writeJson(out, timings);
+    		}
+    		else
+    			writer = result::writeJson;
+    		String serverTiming = timer.toServerTiming();
+    		return ok().chunked(toSource(timed(term, timer, writer))).as(mediaType)
+    				.withHeader(SERVER_TIMING, serverTiming).withHeader(VARY, ACCEPT);
+    	});
+    }
+    
+    /**
+     * Parses the <code>filter</code> parameters of the request.
+     * @return values of each field or null if a filter is not <code>field:value</code>
+     */
+    private Map<String, List<String>> facetFilters(){
+    	Map<String, List<String>> filters = new HashMap<>();
+    	String[] values = request().queryString().get("filter");
+    	if (values == null)
+    		return filters;
+    	for(String value : values){
+    		int i = value.indexOf(':');
+    		if (i <= 0 || i == value.length() - 1)
+    			return null;
+    		filters.computeIfAbsent(value.substring(0, i), k -> new ArrayList<>())
+    			.add(value.substring(i + 1).toLowerCase());
+    	}
+    	return filters;
+    }
+    
+    /**
+     * Times result serialization and logs slow searches.
+     */
+    private ResultWriter timed(String term, PhaseTimer timer, ResultWriter writer){
+    	return out -> {
+    		try (PhaseTimer.Phase phase = timer.start("json")) {
+    			writer.write(out);
+    		} finally {
+    			if (timer.getElapsed() > slowThreshold)
+    				Logger.warn("Slow search for '{}': {}", term, timer.toServerTiming());
+    		}
+    	};
+    }
+    
+    /**
+     * @return the media type for search results: the first binary format
+     * explicitly accepted by the client, or Json.
+     */
+    private String preferredMediaType(){
+    	for(MediaRange range : request().acceptedTypes()){
+    		String type = range.mediaType() + "/" + range.mediaSubType();
+    		if (type.equals(BinaryResultWriter.MEDIA_TYPE) || type.equals(BinaryResultWriter.MEDIA_TYPE_QUANTIZED))
+    			return type;
+    	}
+    	return "application/json";
     }
     
+    /**
+     * Creates a source of result chunks. The result is written by a response
+     * thread ({@link SearchExecutors#response()}), which blocks while the client
+     * is not ready to receive more data.
+     * @param writer writes the result
+     * @return the source of chunks
+     */
+    private Source<ByteString, ?> toSource(ResultWriter writer){
+    	return StreamConverters.asOutputStream().mapMaterializedValue(out -> {
+    		try {
+    			executors.response().execute(() -> {
+    				try (OutputStream os = out) {
+    					writer.write(os);
+    				} catch (IOException e) {
+    					Logger.warn("Can't write search result: {}", e.getMessage());
+    				}
+    			});
+    		} catch (RejectedExecutionException e) {
+    			Logger.error("Can't write search result", e);
+    			out.close();
+    		}
+    		return out;
+    	});
+    }
+    
+    /**
+     * Searches a page of results. The first page (no cursor) has the clustered 
+     * documents; next pages have new documents placed into the first page 
+     * clusters. Each page has a cursor to the next one.
+     * @param term the search term
+     * @param cursor cursor returned with the previous page
+     * @param count number of documents in the page, at least 1 (larger counts
+     * are limited to <code>search.pagination.maxCount</code>)
+     * @return Play result as Json
+     */
+    public CompletionStage<Result> searchPage(String term, String cursor, int count){
+    	if (!(docSearcher instanceof PapersIndexSearcher))
+    		return CompletableFuture.completedFuture(status(NOT_IMPLEMENTED, "Pagination is not supported"));
+    	if (count < 1)
+    		return CompletableFuture.completedFuture(badRequest("Count must be at least 1"));
+    	CompletionStage<SearchPage> page;
+    	try {
+    		page = ((PapersIndexSearcher) docSearcher).searchPage(term, cursor, count, executors);
+    	} catch (RejectedExecutionException e) {
+    		return CompletableFuture.completedFuture(
+    				status(SERVICE_UNAVAILABLE, "Too many searches in progress, try again later"));
+    	}
+    	return page.handle((result, e) -> {
+    		if (e != null){
+    			Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+    			if (cause instanceof RejectedExecutionException)
+    				return status(SERVICE_UNAVAILABLE, "Too many searches in progress, try again later");
+    			if (cause instanceof NoSuchElementException)
+    				return status(GONE, cause.getMessage());
+    			Logger.error("Can't search for documents", cause);
+    			return internalServerError("Can't search for documents");
+    		}
+    		if (result == null)
+    			return notFound("No documents found");
+    		return ok().chunked(toSource(result::writeJson)).as("application/json");
+    	});
+    }
+    
+    /**
+     * Searches for user request term, sending partial results as server-sent 
+     * events: <code>hits</code> as soon as documents are found, then 
+     * <code>clusters</code> and <code>layout</code>, and finally <code>done</code>
+     * (or <code>error</code>). The search is cancelled if the client disconnects.
+     * @param term the search term
+     * @return Play result as an event stream
+     */
+    public Result progressiveSearch(String term){
+    	Source<EventSource.Event, ?> events = Source.<EventSource.Event>queue(16, OverflowStrategy.fail())
+    			.mapMaterializedValue(queue -> {
+    				SearchEvents listener = new SearchEvents((name, data) -> 
+    					queue.offer(EventSource.Event.event(data).withName(name)));
+    				queue.watchCompletion().whenComplete((done, e) -> listener.cancel());
+    				
+    				CompletionStage<SearchResult> searchResult;
+    				try {
+    					searchResult = docSearcher.searchProgressive(term, false, 100, listener, executors);
+    				} catch (RejectedExecutionException e) {
+    					queue.offer(EventSource.Event.event("Too many searches in progress, try again later").withName("error"));
+    					queue.complete();
+    					return queue;
+    				}
+    				searchResult.whenComplete((result, e) -> {
+    					if (e != null && !listener.isCancelled()){
+    						Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+    						Logger.error("Can't search for documents", cause);
+    						queue.offer(EventSource.Event.event("Can't search for documents").withName("error"));
+    					}
+    					else if (e == null)
+    						queue.offer(EventSource.Event.event(result != null ? "found" : "not found").withName("done"));
+    					queue.complete();
+    				});
+    				return queue;
+    			});
+    	return ok().chunked(events.via(EventSource.flow())).as(Http.MimeTypes.EVENT_STREAM);
+    }
+    
+    /**
+     * Suggests completions of the term being typed: frequent terms,
+     * titles and authors. Suggestions are looked up in memory, so they
+     * are answered on the request thread.
+     * @param term the typed prefix
+     * @param count maximum number of suggestions of each kind
+     * @return Play result as Json
+     */
+    public Result suggest(String term, int count){
+    	if (!(docSearcher instanceof PapersIndexSearcher))
+    		return status(NOT_IMPLEMENTED, "Suggestions are not supported");
+    	return ok(Json.toJson(((PapersIndexSearcher) docSearcher).suggest(term, Math.min(count, 20))));
+    }
+    
+    /**
+     * Returns search statistics: results cache hits, misses, evictions,
+     * number of entries and size in bytes, and searches executed or
+     * coalesced with identical searches in progress.
+     * @return Play result as Json
+     */
+    public Result searchStats(){
+    	if (docSearcher instanceof PapersIndexSearcher)
+    		return ok(Json.toJson(((PapersIndexSearcher) docSearcher).getStatistics()));
+    	return notFound("Search results are not cached");
+    }
     
     public Result addDocument(String directory){
 //    	try {
@@ -79,7 +359,9 @@ public class HomeController extends Controller {
     public Result javascriptRoutes(){
     	return ok(
     			JavaScriptReverseRouter.create("jsRoutes",
-    					routes.javascript.HomeController.search()
+    					routes.javascript.HomeController.search(),
+    					routes.javascript.HomeController.progressiveSearch(),
+    					routes.javascript.HomeController.suggest()
     				)).as("text/javascript");
     }
 }
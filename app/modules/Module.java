@@ -23,6 +23,7 @@ public class Module extends AbstractModule {
 		// Expect configuration like:
 		// documentSearcher = services.search.MicrosoftAcademicSearcher
 		// documentSearcher = services.search.PapersIndexSearcher
+		// documentSearcher = services.search.FederatedSearcher
 		String bindingClassName = configuration.getString("documentSearcher");
 		try {
 			Class<? extends DocumentSearcher> bindingClass =
@@ -15,8 +15,11 @@ import org.apache.lucene.util.BytesRef;
  * number of citations.
  * 
  * @author jose
- *
+ * @deprecated the number of citations is multiplied into each term score,
+ * so it is applied several times for multi-term queries. Searches use
+ * {@link services.search.CitationBoost}, applied once per document.
  */
+@Deprecated
 public class CitationSimilarity extends Similarity{
 	
 	/**
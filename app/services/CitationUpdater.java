@@ -3,73 +3,408 @@ package services;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.neo4j.driver.v1.exceptions.TransientException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import services.DatabaseHelper.Citation;
+
+/**
+ * Creates the citation edges of all indexed documents in the graph.
+ * <p>The index is partitioned by leaf (segment) across a pool of workers.
+ * Each worker collects citations of its segment and writes them to the
+ * graph in large batches ({@link DatabaseHelper#createCitations(List)}).
+ * Progress and throughput are logged periodically.</p>
+ * <p>Updates are incremental: the commit generation, the time of the commit
+ * read ({@link PapersIndexer#COMMIT_TIMESTAMP_KEY}) and segments processed by
+ * the last run are recorded in the index commit user data. The next run skips
+ * all segments already processed and, in new segments (flushed or merged),
+ * visits only documents whose {@link PapersIndexer#MODIFIED_FIELD} is not older
+ * than that commit: older documents were all in the commit read by the last
+ * run, even if they were parsed before it started and committed after.</p>
+ * <p>Workers merge the same popular cited nodes concurrently, so a batch may
+ * fail with a deadlock or another transient error: it is retried with
+ * exponential backoff before it counts as failed. The state is recorded only
+ * if no batch failed, with a writer that waits for the index write lock; if
+ * the lock can't be obtained the failure is logged and the next run
+ * processes the changed segments again.</p>
+ *
+ * @author jose
+ *
+ */
 public class CitationUpdater {
 
 	private static Logger logger = LoggerFactory.getLogger(CitationUpdater.class);
-	
+
+	private static final Pattern CITATION_SEPARATOR = Pattern.compile("\\$");
+
+	private static final Pattern FIELD_SEPARATOR = Pattern.compile("\t");
+
+	/**
+	 * Stored fields needed to process citations of a document
+	 */
+	private static final Set<String> FIELDS = new HashSet<>(Arrays.asList(
+			References.FIELD, "citString", "citDOI", "key", "doi", "title", "authors", "year"));
+
+	/**
+	 * Commit user data keys
+	 */
+	static final String GENERATION_KEY = "citations.generation";
+
+	static final String TIMESTAMP_KEY = "citations.timestamp";
+
+	static final String SEGMENTS_KEY = "citations.segments";
+
+	/**
+	 * Interval between progress reports (seconds)
+	 */
+	private static final int PROGRESS_INTERVAL = 10;
+
+	/**
+	 * Attempts to write a batch failing with transient errors (deadlocks)
+	 */
+	private static final int MAX_ATTEMPTS = 5;
+
+	/**
+	 * Wait before the first retry of a batch, doubled at each retry (milliseconds)
+	 */
+	private static final long RETRY_BACKOFF = 100;
+
+	/**
+	 * Attempts to obtain the index write lock to save the state, one second apart
+	 */
+	private static final int LOCK_ATTEMPTS = 30;
+
 	private String indexDir;
-	
+
+	/**
+	 * Number of worker threads
+	 */
+	private final int numThreads;
+
+	/**
+	 * Number of citations written in each graph transaction
+	 */
+	private final int batchSize;
+
+	/**
+	 * Whether all documents must be processed, ignoring the last run
+	 */
+	private final boolean fullUpdate;
+
+	private final AtomicLong processedDocs = new AtomicLong();
+
+	private final AtomicLong skippedSegments = new AtomicLong();
+
+	private final AtomicLong writtenCitations = new AtomicLong();
+
+	private final AtomicLong failedCitations = new AtomicLong();
+
 	public CitationUpdater(String indexDir) {
+		this(indexDir, Runtime.getRuntime().availableProcessors(), 1000, false);
+	}
+
+	public CitationUpdater(String indexDir, int numThreads, int batchSize, boolean fullUpdate) {
 		super();
 		this.indexDir = indexDir;
+		this.numThreads = numThreads;
+		this.batchSize = batchSize;
+		this.fullUpdate = fullUpdate;
 	}
-	
+
 	public void updateCitationsCount() throws IOException, SQLException{
 		Directory directory = FSDirectory.open(new File(indexDir).toPath());
-	
-		IndexReader ireader = null;
+
+		DirectoryReader ireader = null;
+		ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
 		try {
-			 ireader = DirectoryReader.open(directory);
-			 Bits liveDoc = MultiFields.getLiveDocs(ireader);
-			 
-			 for(int i = 0; i < ireader.maxDoc(); i++){
-				if (liveDoc != null && !liveDoc.get(i))
+			final long start = System.currentTimeMillis();
+			ireader = DirectoryReader.open(directory);
+
+			final IndexCommit commit = ireader.getIndexCommit();
+			final Map<String, String> userData = commit.getUserData();
+			// Documents not in this commit are newer than its time, so the next
+			// run processes them. Commits without time process all new segments.
+			final long committed = userData.containsKey(PapersIndexer.COMMIT_TIMESTAMP_KEY) ?
+					Long.parseLong(userData.get(PapersIndexer.COMMIT_TIMESTAMP_KEY)) : 0;
+			long lastTimestamp = 0;
+			Set<String> processedSegments = new HashSet<>();
+			if (!fullUpdate && userData.containsKey(TIMESTAMP_KEY)){
+				if (String.valueOf(commit.getGeneration()).equals(userData.get(GENERATION_KEY))){
+					logger.info("Index unchanged since last run (generation " + commit.getGeneration() + ")");
+					return;
+				}
+				lastTimestamp = Long.parseLong(userData.get(TIMESTAMP_KEY));
+				processedSegments.addAll(Arrays.asList(userData.get(SEGMENTS_KEY).split(",")));
+			}
+
+			final long totalDocs = ireader.numDocs();
+			reporter.scheduleAtFixedRate(() -> reportProgress(totalDocs, start),
+					PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+
+			final long since = lastTimestamp;
+			List<String> segments = new ArrayList<>();
+			List<Future<?>> tasks = new ArrayList<>();
+			for(LeafReaderContext leaf : ireader.leaves()){
+				String segment = getSegmentName(leaf.reader());
+				if (segment != null)
+					segments.add(segment);
+				if (segment != null && processedSegments.contains(segment)){
+					skippedSegments.incrementAndGet();
 					continue;
-				 
-				 Document doc = ireader.document(i);
-				 String citString = doc.get("citString");
-				 String citDOI = doc.get("citDOI");
-				 processCitation(doc, citDOI, citString);
-			 }
+				}
+				tasks.add(workers.submit(() -> { processLeaf(leaf.reader(), since); return null; }));
+			}
+
+			for(Future<?> task : tasks)
+				task.get();
+
+			reportProgress(totalDocs, start);
+
+			if (failedCitations.get() == 0){
+				try {
+					saveState(directory, commit.getGeneration(), committed, segments);
+				} catch (IOException e) {
+					logger.error("Can't save citations state, the next run will process all changed segments again", e);
+				}
+			}
+			else
+				logger.warn("Some citations failed, the next run will process all changed segments again");
 		} catch (IOException e) {
 			logger.error("Can't create index searcher object", e);
 			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Citation update interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
 		}finally {
+			reporter.shutdownNow();
+			workers.shutdownNow();
 			if (ireader != null){
 				ireader.close();
 			}
 		}
 	}
 
+	/**
+	 * Records the processed commit into a new commit user data. The 
+	 * generation recorded is the one written by this method, so an
+	 * index not modified after this run is detected as unchanged.
+	 */
+	private void saveState(Directory directory, long generation, long timestamp, List<String> segments) throws IOException {
+		try (IndexWriter writer = openWriter(directory)){
+			Map<String, String> userData = new HashMap<>(writer.getCommitData());
+			userData.put(GENERATION_KEY, String.valueOf(generation + 1));
+			userData.put(TIMESTAMP_KEY, String.valueOf(timestamp));
+			userData.put(SEGMENTS_KEY, String.join(",", segments));
+			writer.setCommitData(userData);
+			writer.commit();
+		}
+	}
 
+	/**
+	 * Opens a writer, waiting for the write lock if the index is being
+	 * written by the application.
+	 * @throws LockObtainFailedException if the lock is still held after
+	 * all attempts
+	 */
+	private static IndexWriter openWriter(Directory directory) throws IOException {
+		for(int attempt = 1; ; attempt++){
+			IndexWriterConfig cfg = new IndexWriterConfig(new StandardAnalyzer());
+			cfg.setOpenMode(OpenMode.APPEND);
+			try {
+				return new IndexWriter(directory, cfg);
+			} catch (LockObtainFailedException e) {
+				if (attempt == LOCK_ATTEMPTS)
+					throw e;
+				logger.info("Index is locked, waiting to save citations state");
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
 
-	private void processCitation(Document doc, String citDOI, String citString) 
-	{
-		String[] citations = citString.split("\\$");	
-		for(int i = 0; i < citations.length; i++){
-			String[] fields = citations[i].split("\t");
+	private static String getSegmentName(LeafReader reader) {
+		if (reader instanceof SegmentReader)
+			return ((SegmentReader) reader).getSegmentName();
+		return null;
+	}
+
+	/**
+	 * Processes all live documents of a segment modified
+	 * at or after <code>since</code>, writing its citations in batches.
+	 * @param reader the segment reader
+	 * @param since minimum modification time of documents to process
+	 * @throws IOException if stored fields can't be read
+	 */
+	private void processLeaf(LeafReader reader, long since) throws IOException {
+		Bits liveDocs = reader.getLiveDocs();
+		NumericDocValues modified = reader.getNumericDocValues(PapersIndexer.MODIFIED_FIELD);
+		List<Citation> batch = new ArrayList<>(batchSize);
+
+		for(int i = 0; i < reader.maxDoc(); i++){
+			if (liveDocs != null && !liveDocs.get(i))
+				continue;
+			if (since > 0 && (modified == null || modified.get(i) < since))
+				continue;
+
+			Document doc = reader.document(i, FIELDS);
+			processCitation(doc, batch);
+			processedDocs.incrementAndGet();
+
+			if (batch.size() >= batchSize)
+				flush(batch);
+		}
+		flush(batch);
+	}
+
+	/**
+	 * Writes a batch of citations, retrying transient failures.
+	 */
+	private void flush(List<Citation> batch) {
+		if (batch.isEmpty())
+			return;
+		for(int attempt = 1; ; attempt++){
 			try {
-				DatabaseHelper.createCitaton(doc, citDOI, fields[0], fields[1], fields[2]);
+				writtenCitations.addAndGet(DatabaseHelper.createCitations(batch));
+				break;
 			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				if (attempt < MAX_ATTEMPTS && isTransient(e) && backoff(attempt)){
+					logger.debug("Transient failure writing citations, attempt " + attempt, e);
+					continue;
+				}
+				failedCitations.addAndGet(batch.size());
+				logger.error("Can't write batch of " + batch.size() + " citations", e);
+				break;
 			}
 		}
+		batch.clear();
 	}
-	
+
+	/**
+	 * @return whether an error is transient (e.g. a deadlock between workers)
+	 * and the transaction can be retried
+	 */
+	private static boolean isTransient(Throwable e) {
+		for(Throwable t = e; t != null; t = t.getCause()){
+			if (t instanceof TransientException || t instanceof java.sql.SQLTransientException)
+				return true;
+			if (t.getMessage() != null && t.getMessage().contains("Neo.TransientError"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Waits before retrying: exponential backoff with jitter, so workers
+	 * that deadlocked don't retry at the same time.
+	 * @return false if interrupted
+	 */
+	private static boolean backoff(int attempt) {
+		long wait = RETRY_BACKOFF << (attempt - 1);
+		try {
+			Thread.sleep(wait + ThreadLocalRandom.current().nextLong(wait));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void processCitation(Document doc, List<Citation> batch)
+	{
+		String citingKey = DatabaseHelper.getKey(doc);
+		BytesRef record = doc.getBinaryValue(References.FIELD);
+		if (record != null){
+			References.Reader references = new References.Reader(record);
+			while (references.next())
+				batch.add(new Citation(citingKey, references.toBibliography()));
+		}
+		else
+			processLegacyCitation(citingKey, doc.get("citDOI"), doc.get("citString"), batch);
+	}
+
+	/**
+	 * Processes references of documents indexed before references were
+	 * binary encoded: a <code>citString</code> field with references
+	 * separated by '$' and fields separated by tabs.
+	 */
+	private void processLegacyCitation(String citingKey, String citDOI, String citString, List<Citation> batch)
+	{
+		if (citString == null)
+			return;
+
+		String[] citations = CITATION_SEPARATOR.split(citString);
+		for(int i = 0; i < citations.length; i++){
+			String[] fields = FIELD_SEPARATOR.split(citations[i]);
+			if (fields.length < 3)
+				continue;
+			Bibliography bib = new Bibliography();
+			bib.setDOI(citDOI);
+			bib.setTitle(fields[0]);
+			bib.setAuthors(fields[1]);
+			bib.setPublicationDate(fields[2]);
+			batch.add(new Citation(citingKey, bib));
+		}
+	}
+
+	private void reportProgress(long totalDocs, long start) {
+		double elapsed = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+		long docs = processedDocs.get();
+		long citations = writtenCitations.get();
+		logger.info(String.format("Processed %d/%d documents (%.1f%%), %d segments skipped, %d citations written, "
+				+ "%d failed - %.1f docs/s, %.1f citations/s", docs, totalDocs, totalDocs > 0 ? 100.0 * docs / totalDocs : 100.0,
+				skippedSegments.get(), citations, failedCitations.get(), docs / elapsed, citations / elapsed));
+	}
+
 	public static void main(String[] args) {
-		CitationUpdater counter = new CitationUpdater("db");
+		String indexDir = args.length > 0 ? args[0] : "db";
+		int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		boolean fullUpdate = args.length > 3 && "--full".equals(args[3]);
+
+		CitationUpdater counter = new CitationUpdater(indexDir, numThreads, batchSize, fullUpdate);
 		try {
 			counter.updateCitationsCount();
 		} catch (IOException | SQLException e) {
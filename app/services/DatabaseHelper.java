@@ -5,9 +5,14 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.lucene.document.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
@@ -20,6 +25,8 @@ import com.typesafe.config.ConfigFactory;
  */
 public final class DatabaseHelper {
 
+	private static final Logger logger = LoggerFactory.getLogger(DatabaseHelper.class);
+
 	/**
 	 * Neo4j connection URL
 	 */
@@ -35,6 +42,12 @@ public final class DatabaseHelper {
 	 */
 	private final String neo4jPassword;
 
+	/**
+	 * Whether the schema (canonical key constraint) was already created
+	 * by this process
+	 */
+	private volatile boolean schemaCreated;
+
 	private static final DatabaseHelper INSTANCE = new DatabaseHelper();
 
 	/**
@@ -67,8 +80,87 @@ public final class DatabaseHelper {
 		return DriverManager.getConnection(INSTANCE.neo4jUrl, INSTANCE.neo4jUser, INSTANCE.neo4jPassword);
 	}
 
+	/**
+	 * Creates the unique constraint (and its backing index) on the
+	 * canonical key of document nodes. Schema changes can't be mixed
+	 * with data changes in the same transaction, so this runs once,
+	 * in its own auto-commit connection, before the first node is added.
+	 * <p>Graphs created before canonical keys have nodes without key, which
+	 * merging on the key duplicates. Consolidating them reads the whole graph,
+	 * so it is not done here but by the {@link GraphConsolidator} job; a 
+	 * warning is logged while there are nodes it can key.</p>
+	 * @throws SQLException if the constraint can't be created.
+	 */
+	public static void ensureSchema() throws SQLException {
+		if (INSTANCE.schemaCreated)
+			return;
+		synchronized (INSTANCE) {
+			if (INSTANCE.schemaCreated)
+				return;
+			long unkeyed = countUnkeyedNodes();
+			if (unkeyed > 0)
+				logger.warn(unkeyed + " document nodes have no canonical key and may be duplicated, "
+						+ "run services.GraphConsolidator to merge them");
+			createSchema();
+		}
+	}
+
+	/**
+	 * Creates the canonical key constraint, without checking for nodes 
+	 * to consolidate. Nodes without key don't violate it. Called by 
+	 * {@link GraphConsolidator} once duplicates are merged.
+	 * @throws SQLException if the constraint can't be created.
+	 */
+	static void createSchema() throws SQLException {
+		synchronized (INSTANCE) {
+			try (Connection con = getConnection();
+					PreparedStatement stmt = con.prepareStatement(
+							"CREATE CONSTRAINT ON (n:DOCUMENT) ASSERT n.key IS UNIQUE")){
+				stmt.executeUpdate();
+			}
+			INSTANCE.schemaCreated = true;
+		}
+	}
+
+	/**
+	 * Counts nodes without key that may be keyed: they have a DOI or a
+	 * title and {@link GraphConsolidator} didn't mark them as unkeyable 
+	 * (their title has no letters or digits).
+	 */
+	private static long countUnkeyedNodes() throws SQLException {
+		try (Connection con = getConnection();
+				PreparedStatement stmt = con.prepareStatement(
+						"MATCH (n:DOCUMENT) WHERE n.key IS NULL AND NOT coalesce(n.unkeyable, false) "
+						+ "AND (coalesce(n.doi, '') <> '' OR coalesce(n.title, '') <> '') "
+						+ "RETURN count(n) AS total")){
+			ResultSet rs = stmt.executeQuery();
+			long total = rs.next() ? rs.getLong("total") : 0;
+			rs.close();
+			return total;
+		}
+	}
+
+	/**
+	 * Returns the canonical key of an indexed document. Documents
+	 * indexed before canonical keys were introduced have no
+	 * <code>key</code> field, so it is computed from its metadata.
+	 * @param doc the indexed document
+	 * @return the canonical key or null if the document can't be identified.
+	 * @see Utils#canonicalKey(String, String, String, String)
+	 */
+	public static String getKey(Document doc){
+		String key = doc.get("key");
+		if (key != null)
+			return key;
+		return Utils.canonicalKey(doc.get("doi"), doc.get("title"), doc.get("authors"), doc.get("year"));
+	}
+
 	/**
 	 * Adds a node representing a document into Neo4j database.
+	 * The node is identified (merged) only by its canonical key, 
+	 * other properties are set when the node is created. Empty
+	 * DOI and file properties of an existing node are filled in 
+	 * with the given values.
 	 * @param title document's title
 	 * @param authors document's authors
 	 * @param file document's file
@@ -78,7 +170,8 @@ public final class DatabaseHelper {
 	 */
 	public static long addNode(String doi, String title, String authors, String year, String file) throws Exception {
 
-		if (doi != null || (title != null && authors != null && year != null)){
+		String key = Utils.canonicalKey(doi, title, authors, year);
+		if (key != null && (doi != null || (title != null && authors != null && year != null))){
 
 			//Clean values
 			doi = doi == null ? "" : doi;
@@ -86,6 +179,8 @@ public final class DatabaseHelper {
 			authors = authors == null ? "" :  authors;
 			year = year == null ?  "" : year;
 
+			ensureSchema();
+
 			try (Connection con = getConnection()){
 				con.setAutoCommit(false);
 
@@ -95,19 +190,21 @@ public final class DatabaseHelper {
 				// node in the index, it does not has a file property.
 				// So, we can differentiate nodes (documents) in the index
 				// from that only in the graph (not already inserted).
-				String queryString;
+				String queryString = "MERGE (n:DOCUMENT {key: {1}}) "
+						+ "ON CREATE SET n.doi = {2}, n.title = {3}, n.authors = {4}, n.year = {5} "
+						+ "ON MATCH SET n.doi = CASE WHEN n.doi IS NULL OR n.doi = '' THEN {2} ELSE n.doi END ";
 				if (file != null)
-					queryString = "MERGE (n:DOCUMENT {doi: {1}, title: {2}, authors: {3}, year: {4}, file: {5}}) RETURN n";
-				else
-					queryString = "MERGE (n:DOCUMENT {doi: {1}, title: {2}, authors: {3}, year: {4}}) RETURN n";
+					queryString += "SET n.file = {6} ";
+				queryString += "RETURN n";
 
 				try (PreparedStatement stmt = con.prepareStatement(queryString)){
-					stmt.setString(1, doi);
-					stmt.setString(2, title);
-					stmt.setString(3, authors);
-					stmt.setString(4, year);
+					stmt.setString(1, key);
+					stmt.setString(2, doi);
+					stmt.setString(3, title);
+					stmt.setString(4, authors);
+					stmt.setString(5, year);
 					if (file != null)
-						stmt.setString(5, file);
+						stmt.setString(6, file);
 
 					// Get the new node object and return its internal id
 					ResultSet rs = stmt.executeQuery();
@@ -148,50 +245,22 @@ public final class DatabaseHelper {
 	 */
 	public static long createCitaton(Document doc, String doi, String title, String authors, String year) throws Exception {
 
+		String citingKey = getKey(doc);
+		if (citingKey == null)
+			throw new Exception("Document has no DOI or title. Can't create citation!");
+
 		// Creates a new node for cited document if needed
-		addNode(doi, title, authors, year, null);
+		long citedId = addNode(doi, title, authors, year, null);
 
 		try (Connection con = getConnection()){
 			con.setAutoCommit(false);
 			//Directional edge from n->m return m (cited node)
-			String queryString = null;
-
-			String param1 = doc.get("doi");
-			String param2 = null;
-			if (param1 != null && !param1.isEmpty()){
-				if (doi != null && !doi.isEmpty()){
-					queryString = "MATCH (n:DOCUMENT {doi: {1}}), "
-							+ "(m:DOCUMENT {doi: {2}}) MERGE (n)-[r:CITES]->(m) RETURN m";
-					param2 = doi;
-				}
-				else if (title != null && !title.isEmpty()){
-					queryString = "MATCH (n:DOCUMENT {doi: {1}}), "
-							+ "(m:DOCUMENT {title: {2}}) MERGE (n)-[r:CITES]->(m) RETURN m";
-					param2 = title;
-				}
-			}
-			else{
-				param1 = doc.get("title");
-				if (param1 != null && !param1.isEmpty()){
-					if (doi != null && !doi.isEmpty()){
-						queryString = "MATCH (n:DOCUMENT {title: {1}}), "
-								+ "(m:DOCUMENT {doi: {2}}) MERGE (n)-[r:CITES]->(m) RETURN m";
-						param2 = doi;
-					}
-					else if (title != null && !title.isEmpty()){
-						queryString = "MATCH (n:DOCUMENT {title: {1}}), "
-								+ "(m:DOCUMENT {title: {2}}) MERGE (n)-[r:CITES]->(m) RETURN m";
-						param2 = title;
-					}
-				}
-			}
-
-			if (queryString == null)
-				throw new Exception("Document has no DOI or title. Can't create citation!");
+			String queryString = "MATCH (n:DOCUMENT {key: {1}}), (m:DOCUMENT) WHERE ID(m) = {2} "
+					+ "MERGE (n)-[r:CITES]->(m) RETURN m";
 
 			try (PreparedStatement stmt = con.prepareStatement(queryString)){
-				stmt.setString(1, param1);
-				stmt.setString(2, param2);
+				stmt.setString(1, citingKey);
+				stmt.setLong(2, citedId);
 				ResultSet rs = stmt.executeQuery();
 
 				if (rs.next()){
@@ -216,6 +285,86 @@ public final class DatabaseHelper {
 		}
 	}
 
+	/**
+	 * A citation to be created by {@link DatabaseHelper#createCitations(List)}:
+	 * the canonical key of the citing document and the cited reference.
+	 */
+	public static final class Citation {
+
+		private final String citingKey;
+
+		private final Bibliography cited;
+
+		public Citation(String citingKey, Bibliography cited) {
+			this.citingKey = citingKey;
+			this.cited = cited;
+		}
+
+		public String getCitingKey() {
+			return citingKey;
+		}
+
+		public Bibliography getCited() {
+			return cited;
+		}
+	}
+
+	/**
+	 * Creates a batch of citations in a single transaction. Cited nodes
+	 * are merged by canonical key as in {@link #addNode(String, String, String, String, String)}.
+	 * Citations whose cited reference has not enough information to
+	 * compute a key are skipped.
+	 * @param citations the citations to create.
+	 * @return the number of edges matched or created.
+	 * @throws Exception if any error occurs when creating the edges.
+	 */
+	public static long createCitations(List<Citation> citations) throws Exception {
+		List<Map<String, Object>> rows = new ArrayList<>(citations.size());
+		for(Citation citation : citations){
+			Bibliography bib = citation.getCited();
+			String key = Utils.canonicalKey(bib.getDOI(), bib.getTitle(), bib.getAuthors(), bib.getPublicationDate());
+			if (key == null || citation.getCitingKey() == null)
+				continue;
+			Map<String, Object> row = new HashMap<>();
+			row.put("source", citation.getCitingKey());
+			row.put("key", key);
+			row.put("doi", bib.getDOI() == null ? "" : bib.getDOI());
+			row.put("title", bib.getTitle() == null ? "" : bib.getTitle());
+			row.put("authors", bib.getAuthors() == null ? "" : bib.getAuthors());
+			row.put("year", bib.getPublicationDate() == null ? "" : bib.getPublicationDate());
+			rows.add(row);
+		}
+		if (rows.isEmpty())
+			return 0;
+		// Concurrent batches lock cited nodes in the same order, 
+		// which makes deadlocks between them less likely
+		rows.sort((a, b) -> ((String) a.get("key")).compareTo((String) b.get("key")));
+
+		ensureSchema();
+
+		try (Connection con = getConnection()){
+			con.setAutoCommit(false);
+			String queryString = "UNWIND {1} AS c "
+					+ "MERGE (m:DOCUMENT {key: c.key}) "
+					+ "ON CREATE SET m.doi = c.doi, m.title = c.title, m.authors = c.authors, m.year = c.year "
+					+ "ON MATCH SET m.doi = CASE WHEN m.doi IS NULL OR m.doi = '' THEN c.doi ELSE m.doi END "
+					+ "WITH c, m MATCH (n:DOCUMENT {key: c.source}) "
+					+ "MERGE (n)-[r:CITES]->(m) RETURN count(r) AS total";
+
+			try (PreparedStatement stmt = con.prepareStatement(queryString)){
+				stmt.setObject(1, rows);
+				ResultSet rs = stmt.executeQuery();
+				long total = rs.next() ? rs.getLong("total") : 0;
+				rs.close();
+				con.commit();
+				return total;
+			}catch (Exception e) {
+				con.rollback();
+				throw e;
+			}
+		}
+	}
+
 	/**
 	 * Get the number of citations of a document.
 	 * The number of citations are calculated based on the graph
@@ -235,15 +384,10 @@ public final class DatabaseHelper {
 
 		try (Connection con = getConnection()){
 			con.setAutoCommit(false);
-			String value = doc.get("citDOI");
+			String value = getKey(doc);
 			String queryString = null;
-			if (value != null && !value.isEmpty())
-				queryString = "MATCH (n:DOCUMENT {doi: {1}})<-[r:CITES]-() RETURN count(r) as total";
-			else{
-				value = doc.get("title");
-				if (value != null && !value.isEmpty())
-					queryString = "MATCH (n:DOCUMENT {title: {1}})<-[r:CITES]-() RETURN count(r) as total";
-			}
+			if (value != null)
+				queryString = "MATCH (n:DOCUMENT {key: {1}})<-[r:CITES]-() RETURN count(r) as total";
 			if (queryString != null){
 				try (PreparedStatement stmt = con.prepareStatement(queryString)){
 					stmt.setString(1, value);
@@ -265,6 +409,36 @@ public final class DatabaseHelper {
 		return 0;
 	}
 
+	/**
+	 * Get the number of citations of several documents in a single query.
+	 * @param keys canonical keys of the documents.
+	 * @return number of citations by key. Keys without node are not in the map.
+	 * @throws Exception if any error occurs when querying database.
+	 */
+	public static Map<String, Long> getNumberOfCitations(List<String> keys) throws Exception {
+		Map<String, Long> citations = new HashMap<>();
+		if (keys.isEmpty())
+			return citations;
+		try (Connection con = getConnection()){
+			con.setAutoCommit(false);
+			String queryString = "UNWIND {1} AS k MATCH (n:DOCUMENT {key: k}) "
+					+ "OPTIONAL MATCH (n)<-[r:CITES]-() RETURN k AS key, count(r) AS total";
+			try (PreparedStatement stmt = con.prepareStatement(queryString)){
+				stmt.setObject(1, keys);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next())
+					citations.put(rs.getString("key"), rs.getLong("total"));
+				con.commit();
+				return citations;
+			}catch (Exception e) {
+				con.rollback();
+				throw e;
+			}
+		}catch (Exception e) {
+			throw e;
+		}
+	}
+
 	public static long getNumberOfCitations(long id) throws Exception {
 		try (Connection con = getConnection()){
 			con.setAutoCommit(false);
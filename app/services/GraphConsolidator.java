@@ -0,0 +1,200 @@
+package services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One-off job that consolidates duplicated DOCUMENT nodes.
+ * <p>Before canonical keys were introduced nodes were merged on the
+ * full property tuple (doi, title, authors, year), so the same paper
+ * cited with slightly different metadata created several nodes. This job
+ * computes the canonical key of every node, merges nodes sharing the same key
+ * into a single survivor, rewires their CITES edges to the survivor and finally
+ * creates the unique constraint on the key.</p>
+ * <p>The survivor of a group is the node with a file property (a document in the
+ * Lucene index), otherwise a node already keyed or the node with lowest id. So the <code>id</code> field of
+ * indexed documents remains valid. Removed node ids are logged since
+ * <code>cite_id</code> fields may still reference them.</p>
+ * <p>Nodes without enough information to compute a key are marked
+ * <code>unkeyable</code>, so {@link DatabaseHelper#ensureSchema()} doesn't
+ * keep asking for a consolidation because of them.</p>
+ * <p>It reads the whole graph, so it runs only on demand ({@link #main(String[])}),
+ * when {@link DatabaseHelper#ensureSchema()} warns about nodes without key.</p>
+ *
+ * @author jose
+ *
+ */
+public class GraphConsolidator {
+
+	private static Logger logger = LoggerFactory.getLogger(GraphConsolidator.class);
+
+	/**
+	 * Number of groups merged in each transaction
+	 */
+	private static final int BATCH_SIZE = 500;
+
+	private static final String NODES_QUERY = "MATCH (n:DOCUMENT) RETURN ID(n) AS id, n.doi AS doi, n.title AS title, "
+			+ "n.authors AS authors, n.year AS year, n.file AS file, n.key AS key ORDER BY id";
+
+	private static final String REWIRE_INCOMING = "MATCH (d:DOCUMENT)<-[r:CITES]-(s:DOCUMENT), (k:DOCUMENT) "
+			+ "WHERE ID(d) = {1} AND ID(k) = {2} AND ID(s) <> {2} MERGE (s)-[:CITES]->(k)";
+
+	private static final String REWIRE_OUTGOING = "MATCH (d:DOCUMENT)-[r:CITES]->(t:DOCUMENT), (k:DOCUMENT) "
+			+ "WHERE ID(d) = {1} AND ID(k) = {2} AND ID(t) <> {2} MERGE (k)-[:CITES]->(t)";
+
+	private static final String FILL_SURVIVOR = "MATCH (d:DOCUMENT), (k:DOCUMENT) WHERE ID(d) = {1} AND ID(k) = {2} "
+			+ "SET k.doi = CASE WHEN k.doi IS NULL OR k.doi = '' THEN d.doi ELSE k.doi END, "
+			+ "k.file = coalesce(k.file, d.file)";
+
+	private static final String DELETE_NODE = "MATCH (p:DOCUMENT) WHERE ID(p) = {1} OPTIONAL MATCH (p)-[r]-() DELETE r,p";
+
+	private static final String SET_KEY = "MATCH (n:DOCUMENT) WHERE ID(n) = {1} SET n.key = {2}";
+
+	private static final String SET_UNKEYABLE = "MATCH (n:DOCUMENT) WHERE ID(n) = {1} SET n.unkeyable = {2}";
+
+	/**
+	 * A node as read from the graph
+	 */
+	private static class Node {
+		long id;
+		String key;
+		String currentKey;
+		boolean indexed;
+	}
+
+	/**
+	 * Merges all duplicated nodes.
+	 * @return mapping from removed node ids to their survivor node id.
+	 * @throws SQLException if any error occurs when querying or updating database.
+	 */
+	public Map<Long, Long> consolidate() throws SQLException {
+		List<Long> unkeyable = new ArrayList<>();
+		Map<String, List<Node>> groups = loadGroups(unkeyable);
+		Map<Long, Long> removed = new HashMap<>();
+
+		try (Connection con = DatabaseHelper.getConnection()){
+			con.setAutoCommit(false);
+			try {
+				int pending = 0;
+				for(long id : unkeyable){
+					execute(con, SET_UNKEYABLE, id, true);
+					if (++pending == BATCH_SIZE){
+						con.commit();
+						pending = 0;
+					}
+				}
+				for(List<Node> group : groups.values()){
+					Node survivor = selectSurvivor(group);
+					for(Node node : group){
+						if (node == survivor)
+							continue;
+						if (node.indexed)
+							logger.warn("Nodes " + node.id + " and " + survivor.id
+									+ " are both indexed documents with key " + survivor.key);
+						mergeInto(con, node.id, survivor.id);
+						removed.put(node.id, survivor.id);
+					}
+					if (!survivor.key.equals(survivor.currentKey))
+						execute(con, SET_KEY, survivor.id, survivor.key);
+
+					if (++pending == BATCH_SIZE){
+						con.commit();
+						pending = 0;
+					}
+				}
+				con.commit();
+			}catch (SQLException e) {
+				con.rollback();
+				throw e;
+			}
+		}
+
+		DatabaseHelper.createSchema();
+
+		for(Map.Entry<Long, Long> e : removed.entrySet())
+			logger.info("Node " + e.getKey() + " merged into node " + e.getValue());
+		logger.info("Consolidated " + groups.size() + " documents, removed " + removed.size() + " duplicated nodes, "
+				+ unkeyable.size() + " nodes can't be keyed");
+		return removed;
+	}
+
+	/**
+	 * Reads all nodes and groups them by canonical key. Nodes without
+	 * enough information to compute a key are left untouched.
+	 * @param unkeyable receives ids of nodes without key that can't be keyed
+	 */
+	private Map<String, List<Node>> loadGroups(List<Long> unkeyable) throws SQLException {
+		Map<String, List<Node>> groups = new LinkedHashMap<>();
+		try (Connection con = DatabaseHelper.getConnection();
+				PreparedStatement stmt = con.prepareStatement(NODES_QUERY)){
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				Node node = new Node();
+				node.id = rs.getLong("id");
+				node.currentKey = rs.getString("key");
+				node.indexed = rs.getString("file") != null;
+				node.key = Utils.canonicalKey(emptyToNull(rs.getString("doi")), rs.getString("title"),
+						rs.getString("authors"), rs.getString("year"));
+				if (node.key == null){
+					if (node.currentKey == null)
+						unkeyable.add(node.id);
+					continue;
+				}
+				groups.computeIfAbsent(node.key, k -> new ArrayList<>()).add(node);
+			}
+			rs.close();
+		}
+		return groups;
+	}
+
+	private Node selectSurvivor(List<Node> group) {
+		for(Node node : group)
+			if (node.indexed)
+				return node;
+		for(Node node : group)
+			if (node.key.equals(node.currentKey))
+				return node;
+		return group.get(0);
+	}
+
+	private void mergeInto(Connection con, long duplicate, long survivor) throws SQLException {
+		execute(con, REWIRE_INCOMING, duplicate, survivor);
+		execute(con, REWIRE_OUTGOING, duplicate, survivor);
+		execute(con, FILL_SURVIVOR, duplicate, survivor);
+		try (PreparedStatement stmt = con.prepareStatement(DELETE_NODE)){
+			stmt.setLong(1, duplicate);
+			stmt.executeUpdate();
+		}
+	}
+
+	private void execute(Connection con, String query, long param1, Object param2) throws SQLException {
+		try (PreparedStatement stmt = con.prepareStatement(query)){
+			stmt.setLong(1, param1);
+			stmt.setObject(2, param2);
+			stmt.executeUpdate();
+		}
+	}
+
+	private static String emptyToNull(String value){
+		return value == null || value.isEmpty() ? null : value;
+	}
+
+	public static void main(String[] args) {
+		GraphConsolidator consolidator = new GraphConsolidator();
+		try {
+			consolidator.consolidate();
+		} catch (SQLException e) {
+			logger.error("Can't consolidate document nodes", e);
+		}
+	}
+}
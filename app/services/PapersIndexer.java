@@ -9,27 +9,42 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SortingMergePolicy;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.UpgradeIndexMergePolicy;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.spell.LevensteinDistance;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.util.BytesRef;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.AutoDetectParser;
@@ -46,6 +61,7 @@ import play.Configuration;
 import services.parsers.CermineDocumentParser;
 import services.parsers.GrobIDDocumentParser;
 import services.search.PapersIndexSearcher;
+import services.search.StaticRankCollector;
 
 /**
  * Main class for indexing documents (papers) 
@@ -60,6 +76,21 @@ public class PapersIndexer {
 
 	private static final float MAX_DISTANCE = 0.7f;
 
+	/**
+	 * DocValues field with the time (milliseconds) a document was added
+	 * or updated. Used by {@link CitationUpdater} to process only documents
+	 * changed since its last run.
+	 */
+	public static final String MODIFIED_FIELD = "modified";
+
+	/**
+	 * Commit user data key with the time (milliseconds) of the commit. Documents
+	 * are stamped ({@link #MODIFIED_FIELD}) only while a writer holds the index
+	 * lock, and its commits record this time after adding them, so every document
+	 * stamped before the time of a commit is in that commit (or an earlier one).
+	 */
+	public static final String COMMIT_TIMESTAMP_KEY = "modified.timestamp";
+
 	private Logger logger = LoggerFactory.getLogger(PapersIndexer.class);
 
 	/**
@@ -79,7 +110,22 @@ public class PapersIndexer {
 	 */
 	private DocumentParser documentParsers[];
 
+	/**
+	 * Time (milliseconds) to wait after single document changes before
+	 * rewriting the segments out of static rank order (see {@link #reorder()}).
+	 */
+	private final long reorderDelay;
+
+	/**
+	 * True while a reorder is scheduled and has not started yet
+	 */
+	private final AtomicBoolean reorderScheduled = new AtomicBoolean();
 
+	private final ScheduledExecutorService reorderer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "index-reorder");
+		t.setDaemon(true);
+		return t;
+	});
 
 	/**
 	 * Creates a document indexer to index documents from 
@@ -91,6 +137,7 @@ public class PapersIndexer {
 	public PapersIndexer(Configuration configuration, PapersIndexSearcher isearcher) throws Exception {
 		this.indexDir = configuration.getString("luceneIndexDir", "db");
 		this.papersIndexSearcher = isearcher;
+		this.reorderDelay = configuration.getMilliseconds("index.reorder.delay", 300000L);
 		initializeParsers();
 	}
 
@@ -102,8 +149,11 @@ public class PapersIndexer {
 
 	/**
 	 * Creates a new {@link IndexWriter} based on
-	 * default configuration and using {@link CitationSimilarity}
-	 * to score documents.<p> Creates new IndexWriter is expensive,
+	 * default configuration. Merged segments are sorted by number of
+	 * citations ({@link StaticRankCollector#SORT}), so searches can stop 
+	 * early in them until their citation counts are updated. Forced merges
+	 * rewrite the segments out of that order (see {@link #reorder()}).
+	 * <p> Creates new IndexWriter is expensive,
 	 * but how documents will be eventually added to Index maintain
 	 * a IndexWriter during all application live is a complete waste
 	 * of resources</p> 
@@ -115,21 +165,37 @@ public class PapersIndexer {
 		Directory dir = FSDirectory.open(new File(indexDir).toPath());
 		Analyzer analyzer = new StandardAnalyzer();
 		IndexWriterConfig cfg = new IndexWriterConfig(analyzer);
-		cfg.setSimilarity(new CitationSimilarity(IndexSearcher.getDefaultSimilarity()));
+		cfg.setMergePolicy(new SortingMergePolicy(new RankOrderMergePolicy(cfg.getMergePolicy()), 
+				StaticRankCollector.SORT));
 		IndexWriter writer = new IndexWriter(dir, cfg);
 		return writer;
 	}
 
+	/**
+	 * Commits changes, recording the commit time in the commit user data
+	 * ({@link #COMMIT_TIMESTAMP_KEY}), and deletes unused files.
+	 * @param writer the writer
+	 * @throws IOException if changes can't be committed
+	 */
+	private void commit(IndexWriter writer) throws IOException {
+		Map<String, String> userData = new HashMap<>(writer.getCommitData());
+		userData.put(COMMIT_TIMESTAMP_KEY, String.valueOf(System.currentTimeMillis()));
+		writer.setCommitData(userData);
+		writer.commit();
+		writer.deleteUnusedFiles();
+	}
+
 	/**
 	 * Import all document in given directory to the index and
 	 * also create Neo4j nodes.
 	 * Initially all imported documents have citation count 1 (one)
 	 * then {@link #updateCitations(DatabaseHelper, Document)} is called
-	 * to update citation count fields.
+	 * to update citation count fields, and the segments changed are rewritten
+	 * in static rank order.
 	 * @param docsDir directory contains PDF documents.
 	 * @throws IOException a error occurs when indexing documents.
 	 */
-	public void addDocuments(String docsDir) throws IOException
+	public synchronized void addDocuments(String docsDir) throws IOException
 	{
 
 		try (final IndexWriter writer = newIndexWriter()) 
@@ -149,11 +215,12 @@ public class PapersIndexer {
 						// neo4j database, so we cannot calculate citation count
 						// unless all documents have been added.
 						// All documents will have same citCount (1.0) for scoring.
-						// CitationSimilarity use citCount as a multiplication factor
+						// Searches boost scores by citCount (see CitationBoost)
 						// documents with no citation are set to have 1 citation, so
 						// it will not affect the scoring process.
 						NumericDocValuesField citCount = new NumericDocValuesField("citCount", 1L);
 						doc.add(citCount);
+						doc.add(new NumericDocValuesField(MODIFIED_FIELD, System.currentTimeMillis()));
 
 						// Adds node to Neo4j database and get its internal id
 						long nodeId = DatabaseHelper.addNode(doc.get("doi"), doc.get("title"), doc.get("authors"), 
@@ -163,14 +230,19 @@ public class PapersIndexer {
 						doc.add(new StringField("id", ""+nodeId, Store.YES));
 
 						// Add citation nodes
-						for(Bibliography bib : references){
-							try {
-							long citedNodeId = addCitation(doc, bib);
-							doc.add(new StringField("cite_id", ""+citedNodeId, Store.YES));
-							}catch (Exception e) {
-								logger.error("",e);
-								continue;
+						if (references != null){
+							for(Bibliography bib : references){
+								try {
+								long citedNodeId = addCitation(doc, bib);
+								doc.add(new StringField("cite_id", ""+citedNodeId, Store.YES));
+								}catch (Exception e) {
+									logger.error("",e);
+									continue;
+								}
 							}
+							// Store references (binary encoded)
+							doc.add(new StoredField(References.FIELD, References.encode(references)));
+							doc.add(new NumericDocValuesField(References.COUNT_FIELD, references.size()));
 						}
 
 						// Write document to the index
@@ -184,10 +256,11 @@ public class PapersIndexer {
 			});
 
 			// Commit and delete unused files
-			writer.commit();
-			writer.deleteUnusedFiles();
+			commit(writer);
 
 			updateCitations(writer, docs);
+			reorder(writer);
+			papersIndexSearcher.requestRefresh();
 
 		}catch(Exception e){
 			throw e;	
@@ -201,7 +274,7 @@ public class PapersIndexer {
 	 * to be inserted
 	 * @throws Exception error adding to index.
 	 */
-	public void addDocument(String docPath) throws Exception
+	public synchronized void addDocument(String docPath) throws Exception
 	{
 		try (final IndexWriter writer = newIndexWriter()) 
 		{
@@ -213,6 +286,7 @@ public class PapersIndexer {
 				// Just initialize citCount as 1
 				NumericDocValuesField citCount = new NumericDocValuesField("citCount", 1L);
 				doc.add(citCount);
+				doc.add(new NumericDocValuesField(MODIFIED_FIELD, System.currentTimeMillis()));
 
 				// Adds node to Neo4j graph
 				long nodeId = DatabaseHelper.addNode(doc.get("doi"), doc.get("title"), doc.get("authors"),
@@ -226,15 +300,19 @@ public class PapersIndexer {
 						long citedNodeId = addCitation(doc, bib);
 						doc.add(new StringField("cite_id", ""+citedNodeId, Store.YES));
 					}
+					// Store references (binary encoded)
+					doc.add(new StoredField(References.FIELD, References.encode(references)));
+					doc.add(new NumericDocValuesField(References.COUNT_FIELD, references.size()));
 				}
 
 				// Write document to the Index
 				writer.addDocument(doc);
 
-				writer.commit();
-				writer.deleteUnusedFiles();
+				commit(writer);
 
 				updateCitations(writer, Arrays.asList(doc));
+				papersIndexSearcher.requestRefresh();
+				scheduleReorder();
 			}
 		}catch(Exception e){
 			throw e;
@@ -246,7 +324,7 @@ public class PapersIndexer {
 	 * @param id the id of the document to remove (Neo4j node id).
 	 * @throws Exception if any error occurs when removing the document.
 	 */
-	public void removeDocument(String id) throws Exception{
+	public synchronized void removeDocument(String id) throws Exception{
 		// First we need to search for a document with given id.
 		// It is a exact match query
 		Term idTerm = new Term("id", id);
@@ -270,13 +348,13 @@ public class PapersIndexer {
 				writer.deleteDocuments(idTerm);
 
 				// Commit changes
-				writer.commit();
-				writer.deleteUnusedFiles();
+				commit(writer);
+				scheduleReorder();
 			}
 
 			// Release and refresh IndexSeacher to make changes searchable
 			papersIndexSearcher.getSearcherManager().release(isearch);
-			papersIndexSearcher.getSearcherManager().maybeRefresh();
+			papersIndexSearcher.requestRefresh();
 
 		}catch(Exception e){
 			throw e;
@@ -320,8 +398,68 @@ public class PapersIndexer {
 			}
 		}
 
-		writer.commit();
-		writer.deleteUnusedFiles();
+		commit(writer);
+	}
+
+	/**
+	 * Merges segments not in static rank order, rewriting their documents 
+	 * in that order. Segments are only sorted when merged: new segments and 
+	 * citation counts updated after the last merge are not in order until this
+	 * is called. They are rewritten even if the index has a single segment
+	 * (see {@link RankOrderMergePolicy}).
+	 * <p>Called after importing a directory, and {@link #reorderDelay} after
+	 * documents are added or removed one by one, so changes in a row are 
+	 * rewritten once.</p>
+	 * @throws IOException if the index can't be merged
+	 */
+	public synchronized void reorder() throws IOException {
+		try (IndexWriter writer = newIndexWriter()) {
+			reorder(writer);
+		}
+		papersIndexSearcher.requestRefresh();
+	}
+
+	private void reorder(IndexWriter writer) throws IOException {
+		writer.forceMerge(1);
+		commit(writer);
+	}
+
+	/**
+	 * Schedules a {@link #reorder()}, unless one is already waiting. If the 
+	 * index is locked by another process the reorder is scheduled again.
+	 */
+	private void scheduleReorder() {
+		if (reorderDelay < 0 || !reorderScheduled.compareAndSet(false, true))
+			return;
+		reorderer.schedule(() -> {
+			reorderScheduled.set(false);
+			try {
+				reorder();
+			} catch (LockObtainFailedException e) {
+				logger.info("Index is locked, reorder postponed");
+				scheduleReorder();
+			} catch (IOException e) {
+				logger.error("Can't reorder index", e);
+			}
+		}, reorderDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Forced merges rewrite every segment not in static rank order: not 
+	 * sorted when merged, or with citation counts updated since. Other
+	 * merges are those of the wrapped policy.
+	 */
+	private static final class RankOrderMergePolicy extends UpgradeIndexMergePolicy {
+
+		RankOrderMergePolicy(MergePolicy base) {
+			super(base);
+		}
+
+		@Override
+		protected boolean shouldUpgradeSegment(SegmentCommitInfo si) {
+			return si.hasFieldUpdates() || !StaticRankCollector.SORT.toString().equals(
+					si.info.getDiagnostics().get(SortingMergePolicy.SORTER_ID_PROP));
+		}
 	}
 
 	/**
@@ -353,6 +491,7 @@ public class PapersIndexer {
 		// Add document filename to the Index
 		Document doc = new Document();
 		doc.add(new StringField("file", filename.getAbsolutePath(), Store.YES));
+		doc.add(new BinaryDocValuesField("file", new BytesRef(filename.getAbsolutePath())));
 
 		try {
 			// Process document using GROBID: 
@@ -493,18 +632,35 @@ public class PapersIndexer {
 		// Mandatory fields: title and authors
 		doc.add(new StringField("title", title.toLowerCase(), Store.YES));
 		doc.add(new StringField("authors", authors.toLowerCase(), Store.YES));
+		// Display fields are also doc values (see SegmentMetadataCache)
+		doc.add(new BinaryDocValuesField("title", new BytesRef(title.toLowerCase())));
+		doc.add(new BinaryDocValuesField("authors", new BytesRef(authors.toLowerCase())));
 
-		// Some other useful informations
-		if ( affiliation != null )
+		// Some other useful informations. Facet fields (see FacetCollector)
+		// are also sorted set doc values, with the same value as their term
+		if ( affiliation != null ){
 			doc.add(new StringField("affiliation", affiliation.toLowerCase(), Store.YES));
+			doc.add(new SortedSetDocValuesField("affiliation", new BytesRef(affiliation.toLowerCase())));
+		}
 		if ( doi != null )
 			doc.add(new StringField("doi", doi.toLowerCase(), Store.YES));
-		if ( year != null )
+		if ( year != null ){
 			doc.add(new StringField("year", year.toLowerCase(), Store.YES));
-		if ( journal != null )
+			doc.add(new SortedSetDocValuesField("year", new BytesRef(year.toLowerCase())));
+		}
+		if ( journal != null ){
 			doc.add(new StringField("journal", journal.toLowerCase(), Store.YES));
+			doc.add(new SortedSetDocValuesField("journal", new BytesRef(journal.toLowerCase())));
+		}
 		if ( docAbstract != null)
 			doc.add(new TextField("abstract", docAbstract.toLowerCase(), Store.NO));
+
+		// Canonical key identifying the document's node in the graph
+		String key = Utils.canonicalKey(doi, title, authors, year);
+		if ( key != null ){
+			doc.add(new StringField("key", key, Store.YES));
+			doc.add(new BinaryDocValuesField("key", new BytesRef(key)));
+		}
 	}
 
 	@Override
@@ -530,7 +686,7 @@ public class PapersIndexer {
 	public static void main(String[] args) throws Exception {
 
 		if ( args.length != 1){
-			System.out.println("Provide the directory path where articles are located");
+			System.out.println("Provide the directory path where articles are located or --reorder");
 			return;
 		}
 
@@ -546,9 +702,13 @@ public class PapersIndexer {
 
 			Configuration configuration = new Configuration(sb.toString());
 
-			PapersIndexer indexer = new PapersIndexer(configuration, 
-					new PapersIndexSearcher(configuration));
-			indexer.addDocuments(args[0]);
+			try (PapersIndexSearcher searcher = new PapersIndexSearcher(configuration)) {
+				PapersIndexer indexer = new PapersIndexer(configuration, searcher);
+				if (args[0].equals("--reorder"))
+					indexer.reorder();
+				else
+					indexer.addDocuments(args[0]);
+			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -0,0 +1,116 @@
+package services;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Times the phases of a request: Lucene search, documents loading,
+ * clustering, projection etc.
+ * <p>A timer is created by each request and passed along to the code
+ * doing the work, which times its phases with {@link #start(String)}:</p>
+ * <pre>
+ * try (PhaseTimer.Phase phase = timer.start("knn")) {
+ *     ...
+ * }
+ * </pre>
+ * Phases with the same name are added up. {@link #DISABLED} does not
+ * time anything, for callers not interested in timings.
+ *
+ * @author jose
+ */
+public class PhaseTimer {
+
+	/**
+	 * A timer that ignores all phases
+	 */
+	public static final PhaseTimer DISABLED = new PhaseTimer(false);
+
+	private static final Phase NO_PHASE = () -> {};
+
+	private final boolean enabled;
+
+	private final long start = System.nanoTime();
+
+	/**
+	 * Nanoseconds spent in each phase, in the order phases started
+	 */
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+
+	/**
+	 * A phase being timed. Closing it records its duration.
+	 */
+	@FunctionalInterface
+	public interface Phase extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	public PhaseTimer() {
+		this(true);
+	}
+
+	private PhaseTimer(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Starts timing a phase.
+	 * @param name phase name (a token: letters, digits, '-' or '_')
+	 * @return the phase, to be closed when it finishes
+	 */
+	public Phase start(String name) {
+		if (!enabled)
+			return NO_PHASE;
+		final long phaseStart = System.nanoTime();
+		return () -> add(name, System.nanoTime() - phaseStart);
+	}
+
+	/**
+	 * Adds time to a phase.
+	 * @param name phase name
+	 * @param nanos duration in nanoseconds
+	 */
+	public synchronized void add(String name, long nanos) {
+		if (enabled)
+			phases.merge(name, nanos, Long::sum);
+	}
+
+	/**
+	 * @return duration in milliseconds of each phase, in the order they started
+	 */
+	public synchronized Map<String, Double> getPhases() {
+		Map<String, Double> millis = new LinkedHashMap<>();
+		for(Map.Entry<String, Long> phase : phases.entrySet())
+			millis.put(phase.getKey(), phase.getValue() / 1e6);
+		return millis;
+	}
+
+	/**
+	 * @return milliseconds since this timer was created
+	 */
+	public double getElapsed() {
+		return (System.nanoTime() - start) / 1e6;
+	}
+
+	/**
+	 * @return phases and elapsed time formatted as a <code>Server-Timing</code>
+	 * header value, e.g. <code>lucene;dur=12.3, total;dur=45.6</code>
+	 */
+	public String toServerTiming() {
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String, Double> phase : getPhases().entrySet())
+			sb.append(phase.getKey()).append(";dur=").append(format(phase.getValue())).append(", ");
+		sb.append("total;dur=").append(format(getElapsed()));
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return toServerTiming();
+	}
+
+	private static String format(double millis) {
+		return String.format(Locale.ROOT, "%.2f", millis);
+	}
+}
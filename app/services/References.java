@@ -0,0 +1,191 @@
+package services;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Compact binary encoding of document references, stored in the
+ * index as a single binary stored field ({@link #FIELD}).
+ * <p>The record is a vInt with the number of references followed,
+ * for each reference, by its title, authors, year and DOI, each
+ * one as a vInt length and its UTF-8 bytes (length zero for missing
+ * values).</p>
+ * <p>{@link Reader} iterates over a record without copying: field values
+ * are returned as {@link BytesRef} slices of the record bytes.</p>
+ *
+ * @author jose
+ *
+ */
+public final class References {
+
+	/**
+	 * Stored field holding the encoded references
+	 */
+	public static final String FIELD = "references";
+
+	/**
+	 * Numeric doc values field holding the number of references
+	 */
+	public static final String COUNT_FIELD = "numReferences";
+
+	private References() {
+
+	}
+
+	/**
+	 * Encodes a list of references.
+	 * @param references the references to encode
+	 * @return the encoded record
+	 */
+	public static BytesRef encode(List<Bibliography> references){
+		byte[][] values = new byte[references.size() * 4][];
+		int size = vIntSize(references.size());
+		int i = 0;
+		for(Bibliography bib : references){
+			values[i++] = utf8(bib.getTitle());
+			values[i++] = utf8(bib.getAuthors());
+			values[i++] = utf8(bib.getPublicationDate());
+			values[i++] = utf8(bib.getDOI());
+		}
+		for(byte[] value : values)
+			size += vIntSize(value.length) + value.length;
+
+		byte[] bytes = new byte[size];
+		ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+		out.writeVInt(references.size());
+		for(byte[] value : values){
+			out.writeVInt(value.length);
+			out.writeBytes(value, 0, value.length);
+		}
+		return new BytesRef(bytes);
+	}
+
+	/**
+	 * Decodes all references of a record.
+	 * @param record the encoded record
+	 * @return list of references
+	 */
+	public static List<Bibliography> decode(BytesRef record){
+		Reader reader = new Reader(record);
+		List<Bibliography> references = new ArrayList<>(reader.size());
+		while (reader.next())
+			references.add(reader.toBibliography());
+		return references;
+	}
+
+	/**
+	 * Returns the number of references in a record without
+	 * decoding them.
+	 * @param record the encoded record
+	 * @return number of references
+	 */
+	public static int count(BytesRef record){
+		return new ByteArrayDataInput(record.bytes, record.offset, record.length).readVInt();
+	}
+
+	private static byte[] utf8(String value){
+		return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int vIntSize(int value){
+		int size = 1;
+		while ((value & ~0x7F) != 0){
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Cursor over the references of an encoded record. The
+	 * {@link BytesRef} returned by accessors point to the record bytes
+	 * and are only valid until the next call to {@link #next()}.
+	 */
+	public static final class Reader {
+
+		private final ByteArrayDataInput in;
+
+		private final int size;
+
+		private int current = -1;
+
+		private final BytesRef title = new BytesRef();
+
+		private final BytesRef authors = new BytesRef();
+
+		private final BytesRef year = new BytesRef();
+
+		private final BytesRef doi = new BytesRef();
+
+		public Reader(BytesRef record) {
+			this.in = new ByteArrayDataInput(record.bytes, record.offset, record.length);
+			this.size = in.readVInt();
+			title.bytes = authors.bytes = year.bytes = doi.bytes = record.bytes;
+		}
+
+		/**
+		 * @return number of references in the record
+		 */
+		public int size(){
+			return size;
+		}
+
+		/**
+		 * Moves to the next reference.
+		 * @return false if there are no more references.
+		 */
+		public boolean next(){
+			if (++current >= size)
+				return false;
+			slice(title);
+			slice(authors);
+			slice(year);
+			slice(doi);
+			return true;
+		}
+
+		private void slice(BytesRef ref){
+			ref.length = in.readVInt();
+			ref.offset = in.getPosition();
+			in.skipBytes(ref.length);
+		}
+
+		public BytesRef title(){
+			return title;
+		}
+
+		public BytesRef authors(){
+			return authors;
+		}
+
+		public BytesRef year(){
+			return year;
+		}
+
+		public BytesRef doi(){
+			return doi;
+		}
+
+		/**
+		 * Materializes the current reference.
+		 * @return a new {@link Bibliography} with current reference values
+		 */
+		public Bibliography toBibliography(){
+			Bibliography bib = new Bibliography();
+			bib.setTitle(toString(title));
+			bib.setAuthors(toString(authors));
+			bib.setPublicationDate(toString(year));
+			bib.setDOI(toString(doi));
+			return bib;
+		}
+
+		private static String toString(BytesRef ref){
+			return ref.length == 0 ? null : ref.utf8ToString();
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package services;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
 import java.util.List;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,6 +18,13 @@ public final class Utils {
 	
 	private static final Pattern YEAR_PATTERN = Pattern.compile("\\w*(\\d{4})\\w*");
 
+	private static final Pattern DOI_PREFIX = Pattern.compile("^(https?://(dx\\.)?doi\\.org/|doi:)\\s*", 
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+	private static final Pattern NON_ALPHANUMERIC = Pattern.compile("[^\\p{L}\\p{N}]+");
+
 
 	public static String normalizeAuthors(List<String> authors){
 		if (authors.isEmpty())
@@ -59,4 +71,92 @@ public final class Utils {
 		return sb.toString().replaceAll("\\s+;", ";").replaceAll("\\s{2,}", "");
 	}
 
+	/**
+	 * Computes the canonical key of a document. The key is the only
+	 * property used to identify (MERGE) a document node in the graph,
+	 * so the same paper referenced with slightly different metadata
+	 * maps to the same node.
+	 * <p>If the document has a DOI the key is the normalized DOI 
+	 * (lower case, without resolver prefix). Otherwise the key is a 
+	 * hash of normalized title, first author surname and year.</p>
+	 * @param doi document's DOI (may be null)
+	 * @param title document's title
+	 * @param authors document's authors, separated by {@link #AUTHOR_SEPARATOR}
+	 * @param year document's publication year
+	 * @return the canonical key or null if there is not enough
+	 * information to identify the document.
+	 */
+	public static String canonicalKey(String doi, String title, String authors, String year){
+		String normalizedDoi = normalizeDOI(doi);
+		if (normalizedDoi != null)
+			return "doi:" + normalizedDoi;
+
+		String normalizedTitle = normalizeText(title);
+		if (normalizedTitle.isEmpty())
+			return null;
+
+		String firstAuthor = firstAuthorSurname(authors);
+		String normalizedYear = year != null ? sanitizeYear(year.trim()) : "";
+		return "ref:" + sha1(normalizedTitle + "|" + firstAuthor + "|" + normalizedYear);
+	}
+
+	/**
+	 * Normalizes a DOI: removes resolver prefixes, 
+	 * white spaces and converts to lower case.
+	 * @param doi the DOI to normalize
+	 * @return the normalized DOI or null if it is empty
+	 */
+	public static String normalizeDOI(String doi){
+		if (doi == null)
+			return null;
+		String value = DOI_PREFIX.matcher(doi.trim()).replaceFirst("").toLowerCase();
+		return value.isEmpty() ? null : value;
+	}
+
+	/**
+	 * Normalizes a free text for comparison: removes accents and
+	 * punctuation, collapses white spaces and converts to lower case.
+	 * Letters and digits of any script are kept, so titles in non-Latin
+	 * scripts still have a canonical key.
+	 * @param text the text to normalize
+	 * @return the normalized text, never null.
+	 */
+	public static String normalizeText(String text){
+		if (text == null)
+			return "";
+		String value = Normalizer.normalize(text, Normalizer.Form.NFD);
+		value = DIACRITICS.matcher(value).replaceAll("").toLowerCase(Locale.ROOT);
+		return NON_ALPHANUMERIC.matcher(value).replaceAll(" ").trim();
+	}
+
+	/**
+	 * Returns the surname of the first author. Since authors are
+	 * stored either as "last first" or "first last" the longest
+	 * name token is taken as surname, which also ignores initials.
+	 */
+	private static String firstAuthorSurname(String authors){
+		if (authors == null)
+			return "";
+		String first = authors.split(AUTHOR_SEPARATOR + "|,")[0];
+		String surname = "";
+		for(String token : normalizeText(first).split(" ")){
+			if (token.length() > surname.length() || 
+					(token.length() == surname.length() && token.compareTo(surname) < 0))
+				surname = token;
+		}
+		return surname;
+	}
+
+	private static String sha1(String text){
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for(byte b : digest)
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 }
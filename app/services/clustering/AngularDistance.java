@@ -0,0 +1,23 @@
+package services.clustering;
+
+/**
+ * Angular distance: the angle between two vectors divided by pi, in [0, 1].
+ * Unlike {@link CosineDistance} it is a metric (it satisfies the triangle
+ * inequality), which suits k-medoids and the projection better.
+ *
+ * @author jose
+ */
+public class AngularDistance extends CosineDistance {
+
+	private static final long serialVersionUID = 4217093365925106311L;
+
+	@Override
+	protected double toDistance(double cosine) {
+		return Math.acos(cosine) / Math.PI;
+	}
+
+	@Override
+	public double getMaxValue() {
+		return 1;
+	}
+}
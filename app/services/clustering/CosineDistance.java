@@ -0,0 +1,86 @@
+package services.clustering;
+
+import cern.colt.matrix.DoubleMatrix1D;
+
+/**
+ * Cosine distance: one minus the cosine of the angle between two vectors.
+ * It ignores document length, so it suits TF-IDF vectors better than
+ * {@link EuclideanDistance}. A zero vector is at distance 1 of any vector.
+ * <p>Batched distances (see {@link #measureRow(SparseVectors, int, int, int, double[])})
+ * are sparse dot products divided by cached norms, so they only visit
+ * non-zero terms.</p>
+ *
+ * @author jose
+ */
+public class CosineDistance implements DistanceMeasure {
+
+	private static final long serialVersionUID = -1453190873571032964L;
+
+	@Override
+	public double measure(DoubleMatrix1D x, DoubleMatrix1D y) {
+		if (x.size() != y.size()) {
+			throw new RuntimeException("Both instances should contain the same number of values.");
+		}
+
+		double dot = 0, normX = 0, normY = 0;
+		for (int i = 0; i < x.size(); i++) {
+			double xi = x.getQuick(i), yi = y.getQuick(i);
+			dot += xi * yi;
+			normX += xi * xi;
+			normY += yi * yi;
+		}
+		return toDistance(cosine(dot, Math.sqrt(normX), Math.sqrt(normY)));
+	}
+
+	@Override
+	public double measure(org.carrot2.mahout.math.matrix.DoubleMatrix1D x,
+			org.carrot2.mahout.math.matrix.DoubleMatrix1D y) {
+		double dot = 0, normX = 0, normY = 0;
+		for (int i = 0; i < x.size(); i++) {
+			double xi = x.getQuick(i), yi = y.getQuick(i);
+			dot += xi * yi;
+			normX += xi * xi;
+			normY += yi * yi;
+		}
+		return toDistance(cosine(dot, Math.sqrt(normX), Math.sqrt(normY)));
+	}
+
+	@Override
+	public void measureRow(SparseVectors vectors, int row, int from, int to, double[] distances) {
+		vectors.dots(row, from, to, distances);
+		double norm = vectors.norm(row);
+		for (int j = from; j < to; j++)
+			distances[j - from] = toDistance(cosine(distances[j - from], norm, vectors.norm(j)));
+	}
+
+	private static double cosine(double dot, double normX, double normY) {
+		if (normX == 0 || normY == 0)
+			return 0;
+		// Rounding errors may take it slightly out of [-1, 1]
+		return Math.max(-1, Math.min(1, dot / (normX * normY)));
+	}
+
+	/**
+	 * Converts a cosine to a distance.
+	 * @param cosine the cosine, in [-1, 1]
+	 * @return the distance
+	 */
+	protected double toDistance(double cosine) {
+		return 1 - cosine;
+	}
+
+	@Override
+	public boolean compare(double x, double y) {
+		return x < y;
+	}
+
+	@Override
+	public double getMinValue() {
+		return 0;
+	}
+
+	@Override
+	public double getMaxValue() {
+		return 2;
+	}
+}
@@ -1,58 +1,275 @@
 package services.clustering;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 import cern.colt.matrix.DoubleMatrix2D;
-import cern.colt.matrix.impl.DenseDoubleMatrix2D;
 
-public class DistanceMatrix extends DenseDoubleMatrix2D
-implements Cloneable
+/**
+ * Symmetric matrix of distances between elements, with zero diagonal.
+ * <p>Only the upper triangle is stored, condensed row by row as floats:
+ * n(n-1)/2 floats instead of n² doubles, about 4 times less memory, and
+ * distances from an element to the next ones are contiguous.</p>
+ * <p>Distances are stored in heap or, for large matrices, in a memory-mapped
+ * temporary file, off heap: the matrix doesn't need to fit in heap and
+ * building it doesn't cause garbage collections. Mapped matrices should be
+ * closed when no longer used, to release the mapping as soon as possible.
+ * They must not be used after being closed.</p>
+ */
+public class DistanceMatrix implements Closeable
 {
 	/**
-	 * 
+	 * Condensed distances
+	 */
+	private interface Storage extends Closeable
+	{
+		float get(long index);
+
+		void set(long index, float value);
+
+		@Override
+		void close();
+	}
+
+	private static final class HeapStorage implements Storage
+	{
+		private final float[] distances;
+
+		HeapStorage(long size) {
+			if (size > Integer.MAX_VALUE - 8)
+				throw new IllegalArgumentException("Too many distances for a heap matrix: " + size);
+			this.distances = new float[(int) size];
+		}
+
+		public float get(long index) {
+			return distances[(int) index];
+		}
+
+		public void set(long index, float value) {
+			distances[(int) index] = value;
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * Unmaps a buffer
+	 */
+	private interface Unmapper
+	{
+		void unmap(ByteBuffer buffer) throws ReflectiveOperationException;
+	}
+
+	/**
+	 * Distances in a temporary file mapped in chunks of 2^28 floats (1 GB),
+	 * since a mapped buffer has at most 2 GB. The file is deleted as soon
+	 * as it is mapped, so it never outlives the process.
 	 */
-	private static final long serialVersionUID = 1782580878145135666L;
-	
-	protected int nrElements;
+	private static final class MappedStorage implements Storage
+	{
+		private static final int CHUNK_BITS = 28;
+
+		private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+		/**
+		 * Unmaps buffers explicitly, or null if the JVM doesn't support it
+		 */
+		private static final Unmapper UNMAPPER = unmapper();
+
+		private MappedByteBuffer[] buffers;
+
+		private FloatBuffer[] chunks;
+
+		MappedStorage(long size) throws IOException {
+			int nrChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+			this.buffers = new MappedByteBuffer[nrChunks];
+			this.chunks = new FloatBuffer[nrChunks];
+			Path file = Files.createTempFile("distances", ".bin");
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				for (int i = 0; i < nrChunks; i++) {
+					long start = (long) i << CHUNK_BITS;
+					long length = Math.min(CHUNK_MASK + 1, size - start);
+					buffers[i] = channel.map(MapMode.READ_WRITE, start * Float.BYTES, length * Float.BYTES);
+					chunks[i] = buffers[i].order(ByteOrder.nativeOrder()).asFloatBuffer();
+				}
+			} finally {
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException e) {
+					// Mapped files can't be deleted in some systems
+					file.toFile().deleteOnExit();
+				}
+			}
+		}
+
+		public float get(long index) {
+			return chunks[(int) (index >>> CHUNK_BITS)].get((int) (index & CHUNK_MASK));
+		}
+
+		public void set(long index, float value) {
+			chunks[(int) (index >>> CHUNK_BITS)].put((int) (index & CHUNK_MASK), value);
+		}
+
+		/**
+		 * Unmaps buffers right away, so closing releases address space and
+		 * page cache even if the matrix is not garbage collected soon. If
+		 * the JVM doesn't support it, buffers are unmapped when garbage
+		 * collected.
+		 */
+		public void close() {
+			MappedByteBuffer[] unmapped = buffers;
+			chunks = null;
+			buffers = null;
+			if (unmapped == null || UNMAPPER == null)
+				return;
+			for (MappedByteBuffer buffer : unmapped) {
+				try {
+					UNMAPPER.unmap(buffer);
+				} catch (ReflectiveOperationException | RuntimeException e) {
+					// Left to garbage collection
+				}
+			}
+		}
+
+		/**
+		 * Unmapping is not public API, so it is looked up by reflection, as
+		 * Lucene's MMapDirectory does: Unsafe.invokeCleaner in Java 9 and
+		 * later, the buffer cleaner in Java 8.
+		 * @return the unmapper or null if not supported
+		 */
+		private static Unmapper unmapper() {
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field field = unsafeClass.getDeclaredField("theUnsafe");
+				field.setAccessible(true);
+				Object unsafe = field.get(null);
+				return buffer -> invokeCleaner.invoke(unsafe, buffer);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// Not Java 9
+			}
+			try {
+				Method cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+				return buffer -> {
+					Object bufferCleaner = cleaner.invoke(buffer);
+					if (bufferCleaner != null)
+						clean.invoke(bufferCleaner);
+				};
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				return null;
+			}
+		}
+	}
+
+	protected final int nrElements;
 	protected double maxDistance;
 	protected double minDistance;
+	private final Storage storage;
+	private final boolean mapped;
 
 	public DistanceMatrix(int nrElements) {
-		super(nrElements, nrElements);
+		this(nrElements, false);
+	}
+
+	/**
+	 * Creates a matrix of zero distances.
+	 * @param nrElements number of elements
+	 * @param mapped whether distances are stored off heap, in a mapped file
+	 * @throws UncheckedIOException if the mapped file can't be created
+	 */
+	public DistanceMatrix(int nrElements, boolean mapped) {
+		long size = (long) nrElements * (nrElements - 1) / 2;
+		try {
+			this.storage = mapped ? new MappedStorage(size) : new HeapStorage(size);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't map distance matrix", e);
+		}
+		this.nrElements = nrElements;
+		this.mapped = mapped;
 		this.maxDistance = Float.NEGATIVE_INFINITY;
 		this.minDistance = Float.POSITIVE_INFINITY;
-		this.nrElements = nrElements;
 	}
 
 	public DistanceMatrix(DoubleMatrix2D matrix, DistanceMeasure diss)
 	{
-		super(matrix.rows(), matrix.rows());
-		
-		this.nrElements = matrix.rows();
-		this.maxDistance = Float.NEGATIVE_INFINITY;
-		this.minDistance = Float.POSITIVE_INFINITY;
+		this(matrix, diss, false);
+	}
+
+	/**
+	 * Computes distances between rows of a matrix.
+	 * @param matrix the matrix, one element by row
+	 * @param diss the distance measure
+	 * @param mapped whether distances are stored off heap, in a mapped file
+	 */
+	public DistanceMatrix(DoubleMatrix2D matrix, DistanceMeasure diss, boolean mapped)
+	{
+		this(SparseVectors.of(matrix), diss, mapped);
+	}
+
+	public DistanceMatrix(org.carrot2.mahout.math.matrix.DoubleMatrix2D matrix, DistanceMeasure diss) {
+		this(matrix, diss, false);
+	}
 
+	public DistanceMatrix(org.carrot2.mahout.math.matrix.DoubleMatrix2D matrix, DistanceMeasure diss, boolean mapped) {
+		this(SparseVectors.of(matrix), diss, mapped);
+	}
+
+	/**
+	 * Computes distances between vectors, a row of the upper triangle at
+	 * a time (see {@link DistanceMeasure#measureRow(SparseVectors, int, int, int, double[])}).
+	 * @param vectors the vectors
+	 * @param diss the distance measure
+	 * @param mapped whether distances are stored off heap, in a mapped file
+	 */
+	public DistanceMatrix(SparseVectors vectors, DistanceMeasure diss, boolean mapped)
+	{
+		this(vectors.rows(), mapped);
+
+		double[] row = new double[this.nrElements];
 		for (int i = 0; i < this.nrElements; i++) {
+			diss.measureRow(vectors, i, i+1, this.nrElements, row);
 			for (int j = i+1; j < this.nrElements; j++) {
-				double distance = diss.measure(matrix.viewRow(i), matrix.viewRow(j));
-				setDistance(i, j, distance);
-				setDistance(j, i, distance);
+				setDistance(i, j, row[j - i - 1]);
 			}
 		}
 	}
 
-	public DistanceMatrix(org.carrot2.mahout.math.matrix.DoubleMatrix2D matrix, DistanceMeasure diss) {
-		this(new DenseDoubleMatrix2D(matrix.toArray()), diss); 
+	/**
+	 * Position of a distance in the condensed upper triangle
+	 */
+	private long index(int indexA, int indexB)
+	{
+		long i = Math.min(indexA, indexB), j = Math.max(indexA, indexB);
+		return i * this.nrElements - i * (i + 1) / 2 + (j - i - 1);
 	}
 
 	public void setDistance(int indexA, int indexB, double value)
 	{
 		assert ((indexA >= 0) && (indexA < this.nrElements) && (indexB >= 0) && (indexB < this.nrElements)) : "ERROR: index out of bounds!";
 
-		this.setQuick(indexB, indexA, value);
+		if (indexA == indexB)
+			return;
+		this.storage.set(index(indexA, indexB), (float) value);
 
 		if ((this.minDistance > value) && (value >= 0.0F)) {
 			this.minDistance = value;
 		}
-		else if ((this.maxDistance < value) && (value >= 0.0F)) {
+		if ((this.maxDistance < value) && (value >= 0.0F)) {
 			this.maxDistance = value;
 		}
 	}
@@ -60,7 +277,9 @@ implements Cloneable
 	public double getDistance(int indexA, int indexB)
 	{
 		assert ((indexA >= 0) && (indexA < this.nrElements) && (indexB >= 0) && (indexB < this.nrElements)) : "ERROR: index out of bounds!";
-		return this.getQuick(indexA, indexB);
+		if (indexA == indexB)
+			return 0;
+		return this.storage.get(index(indexA, indexB));
 	}
 
 	public double getMaxDistance()
@@ -77,4 +296,21 @@ implements Cloneable
 	{
 		return this.nrElements;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return whether distances are stored off heap
+	 */
+	public boolean isMapped()
+	{
+		return this.mapped;
+	}
+
+	/**
+	 * Releases distances storage. The matrix can't be used anymore.
+	 */
+	@Override
+	public void close()
+	{
+		this.storage.close();
+	}
+}
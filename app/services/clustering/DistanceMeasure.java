@@ -5,6 +5,25 @@ import java.io.Serializable;
 import cern.colt.matrix.DoubleMatrix1D;
 
 public interface DistanceMeasure extends Serializable{
+
+	/**
+	 * Creates a distance measure by class name, e.g. from configuration.
+	 * 
+	 * @param className
+	 *            name of a class implementing this interface, with a public
+	 *            constructor without arguments
+	 * @return a new instance of the measure
+	 * @throws IllegalArgumentException
+	 *             if the class is not a distance measure or can't be created
+	 */
+	public static DistanceMeasure forName(String className) {
+		try {
+			return Class.forName(className, true, DistanceMeasure.class.getClassLoader())
+					.asSubclass(DistanceMeasure.class).newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IllegalArgumentException("Invalid distance measure: " + className, e);
+		}
+	}
 	
 	/**
 	 * Calculates the distance between two instances.
@@ -19,6 +38,53 @@ public interface DistanceMeasure extends Serializable{
 	
 	public double measure(org.carrot2.mahout.math.matrix.DoubleMatrix1D x, org.carrot2.mahout.math.matrix.DoubleMatrix1D y);
 
+	/**
+	 * Calculates distances from a row to a range of rows. Measures should
+	 * override it with an implementation on primitive arrays; by default
+	 * rows are copied to dense vectors and measured one pair at a time.
+	 * 
+	 * @param vectors
+	 *            the vectors, one by row
+	 * @param row
+	 *            the row
+	 * @param from
+	 *            first row of the range
+	 * @param to
+	 *            end of the range (exclusive)
+	 * @param distances
+	 *            receives the distance to row <code>from + k</code> at
+	 *            <code>k</code>
+	 */
+	public default void measureRow(SparseVectors vectors, int row, int from, int to, double[] distances) {
+		DoubleMatrix1D x = vectors.row(row);
+		for (int j = from; j < to; j++)
+			distances[j - from] = measure(x, vectors.row(j));
+	}
+
+	/**
+	 * Calculates distances between a block of rows and another block of
+	 * rows, one row at a time.
+	 * 
+	 * @param vectors
+	 *            the vectors, one by row
+	 * @param rowFrom
+	 *            first row of the first block
+	 * @param rowTo
+	 *            end of the first block (exclusive)
+	 * @param from
+	 *            first row of the second block
+	 * @param to
+	 *            end of the second block (exclusive)
+	 * @param distances
+	 *            receives the distance between rows <code>rowFrom + i</code>
+	 *            and <code>from + k</code> at <code>[i][k]</code>
+	 */
+	public default void measureBlock(SparseVectors vectors, int rowFrom, int rowTo, int from, int to,
+			double[][] distances) {
+		for (int i = rowFrom; i < rowTo; i++)
+			measureRow(vectors, i, from, to, distances[i - rowFrom]);
+	}
+
 	/**
 	 * Returns whether the first distance, similarity or correlation is better
 	 * than the second distance, similarity or correlation.
@@ -16,11 +16,11 @@ public class EuclideanDistance implements DistanceMeasure{
             throw new RuntimeException("Both instances should contain the same number of values.");
         }
         
-        DoubleMatrix1D result = x.copy();
-		result.assign(y, (xi, yi) -> {
-			return (xi - yi)*(xi - yi);
-		});
-		double dist = result.zSum();
+        double dist = 0;
+        for (int i = 0; i < x.size(); i++) {
+        	double diff = x.getQuick(i) - y.getQuick(i);
+        	dist += diff * diff;
+        }
 		return Math.sqrt(dist);
 	}
 
@@ -28,14 +28,29 @@ public class EuclideanDistance implements DistanceMeasure{
 	public double measure(org.carrot2.mahout.math.matrix.DoubleMatrix1D x,
 			org.carrot2.mahout.math.matrix.DoubleMatrix1D y) {
 		
-		org.carrot2.mahout.math.matrix.DoubleMatrix1D result = x.copy();
-		result.assign(y, (xi, yi) -> {
-			return (xi - yi)*(xi - yi);
-		});
-		double dist = result.zSum();
+		double dist = 0;
+		for (int i = 0; i < x.size(); i++) {
+			double diff = x.getQuick(i) - y.getQuick(i);
+			dist += diff * diff;
+		}
 		return Math.sqrt(dist);
 	}
 	
+	/**
+	 * Distances from squared norms and sparse dot products:
+	 * ||x - y||² = ||x||² + ||y||² - 2 x.y
+	 */
+	@Override
+	public void measureRow(SparseVectors vectors, int row, int from, int to, double[] distances) {
+		vectors.dots(row, from, to, distances);
+		double norm = vectors.squaredNorm(row);
+		for (int j = from; j < to; j++) {
+			double squared = norm + vectors.squaredNorm(j) - 2 * distances[j - from];
+			// Rounding errors may make it slightly negative
+			distances[j - from] = squared > 0 ? Math.sqrt(squared) : 0;
+		}
+	}
+
 	@Override
 	public boolean compare(double x, double y) {
 		return x < y;
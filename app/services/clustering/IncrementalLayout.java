@@ -0,0 +1,261 @@
+package services.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.carrot2.core.Cluster;
+import org.carrot2.core.Document;
+import org.carrot2.core.LanguageCode;
+import org.carrot2.mahout.math.matrix.DoubleMatrix2D;
+import org.carrot2.text.preprocessing.PreprocessingContext;
+import org.carrot2.text.preprocessing.pipeline.BasicPreprocessingPipeline;
+import org.carrot2.text.vsm.ITermWeighting;
+import org.carrot2.text.vsm.VectorSpaceModelContext;
+
+import com.carrotsearch.hppc.cursors.IntIntCursor;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+
+/**
+ * Places new documents into existing clusters and layout, without
+ * clustering or projecting again.
+ * <p>Documents clustered by {@link SearchProcessing} are kept as anchors:
+ * their term vectors, clusters and coordinates. A new document is vectorized
+ * with the anchors' vocabulary and term weights, assigned to the cluster
+ * of the nearest medoid and positioned at the inverse distance weighted
+ * average of its nearest anchors. Anchors never change, so placing a page of
+ * documents costs the same however many pages were placed before.</p>
+ *
+ * @author jose
+ */
+public class IncrementalLayout {
+
+	private static final double EPSILON = 1e-9;
+
+	private final Map<String, Integer> rows;
+
+	private final int[] documentFrequencies;
+
+	private final int documentCount;
+
+	private final ITermWeighting termWeighting;
+
+	private final DistanceMeasure dm;
+
+	private final LanguageCode language;
+
+	private final DoubleMatrix1D[] anchors;
+
+	private final double[][] coordinates;
+
+	private final int[] medoids;
+
+	private final List<Cluster> clusters;
+
+	private final int numNeighbors;
+
+	/**
+	 * A document placed into the layout.
+	 */
+	public static final class Placement {
+
+		private final int cluster;
+
+		private final double[] coordinates;
+
+		private final int[] neighbors;
+
+		Placement(int cluster, double[] coordinates, int[] neighbors) {
+			this.cluster = cluster;
+			this.coordinates = coordinates;
+			this.neighbors = neighbors;
+		}
+
+		/**
+		 * @return index of the cluster in {@link IncrementalLayout#getClusters()}
+		 */
+		public int getCluster() {
+			return cluster;
+		}
+
+		public double[] getCoordinates() {
+			return coordinates;
+		}
+
+		/**
+		 * @return indices of the nearest anchor documents
+		 */
+		public int[] getNeighbors() {
+			return neighbors;
+		}
+	}
+
+	private IncrementalLayout(Map<String, Integer> rows, int[] documentFrequencies, int documentCount,
+			ITermWeighting termWeighting, DistanceMeasure dm, LanguageCode language, DoubleMatrix1D[] anchors,
+			double[][] coordinates, int[] medoids, List<Cluster> clusters, int numNeighbors) {
+		this.rows = rows;
+		this.documentFrequencies = documentFrequencies;
+		this.documentCount = documentCount;
+		this.termWeighting = termWeighting;
+		this.dm = dm;
+		this.language = language;
+		this.anchors = anchors;
+		this.coordinates = coordinates;
+		this.medoids = medoids;
+		this.clusters = clusters;
+		this.numNeighbors = numNeighbors;
+	}
+
+	/**
+	 * Creates the layout from the state of a clustering.
+	 * @param preprocessingContext preprocessing of the clustered documents
+	 * @param vsmContext term-document matrix of the clustered documents
+	 * @param termWeighting term weighting used to build the term-document matrix
+	 * @param dm distance measure used for clustering
+	 * @param language documents language
+	 * @param projection documents coordinates
+	 * @param clusters clusters, with the "docIndices" attribute
+	 * @param medoids medoid document of each k-medoids cluster
+	 * @param numNeighbors number of neighbors of each document
+	 * @return the layout
+	 */
+	public static IncrementalLayout create(PreprocessingContext preprocessingContext,
+			VectorSpaceModelContext vsmContext, ITermWeighting termWeighting, DistanceMeasure dm,
+			LanguageCode language, double[][] projection, List<Cluster> clusters, int[] medoids, int numNeighbors) {
+		Map<String, Integer> rows = new HashMap<>();
+		DoubleMatrix2D tdMatrix = vsmContext.termDocumentMatrix;
+		int[] documentFrequencies = new int[tdMatrix.rows()];
+		for(IntIntCursor c : vsmContext.stemToRowIndex){
+			rows.put(new String(preprocessingContext.allStems.image[c.key]), c.value);
+			documentFrequencies[c.value] = preprocessingContext.allStems.tfByDocument[c.key].length / 2;
+		}
+
+		int n = tdMatrix.columns();
+		DoubleMatrix1D[] anchors = new DoubleMatrix1D[n];
+		for(int j = 0; j < n; j++)
+			anchors[j] = new DenseDoubleMatrix1D(tdMatrix.viewColumn(j).toArray());
+
+		int[] clusterOf = new int[n];
+		Arrays.fill(clusterOf, -1);
+		for(int c = 0; c < clusters.size(); c++){
+			int[] docIndices = clusters.get(c).getAttribute("docIndices");
+			if (docIndices != null)
+				for(int doc : docIndices)
+					clusterOf[doc] = c;
+		}
+
+		int[] clusterMedoids = new int[clusters.size()];
+		Arrays.fill(clusterMedoids, -1);
+		for(int medoid : medoids){
+			if (medoid >= 0 && medoid < n && clusterOf[medoid] >= 0)
+				clusterMedoids[clusterOf[medoid]] = medoid;
+		}
+		for(int c = 0; c < clusters.size(); c++){
+			int[] docIndices = clusters.get(c).getAttribute("docIndices");
+			if (clusterMedoids[c] < 0 && docIndices != null && docIndices.length > 0)
+				clusterMedoids[c] = docIndices[0];
+		}
+
+		return new IncrementalLayout(rows, documentFrequencies, preprocessingContext.documents.size(),
+				termWeighting, dm, language, anchors, projection, clusterMedoids,
+				clusters, numNeighbors);
+	}
+
+	/**
+	 * @return the clusters documents are placed into
+	 */
+	public List<Cluster> getClusters() {
+		return clusters;
+	}
+
+	/**
+	 * @return number of anchor documents
+	 */
+	public int getAnchorCount() {
+		return anchors.length;
+	}
+
+	/**
+	 * Places new documents.
+	 * @param documents the documents
+	 * @return the placement of each document, in the same order
+	 */
+	public List<Placement> place(List<Document> documents) {
+		List<Placement> placements = new ArrayList<>(documents.size());
+		if (documents.isEmpty())
+			return placements;
+
+		DoubleMatrix1D[] vectors = vectorize(documents);
+		for(DoubleMatrix1D vector : vectors){
+			double[] distances = new double[anchors.length];
+			for(int a = 0; a < anchors.length; a++)
+				distances[a] = dm.measure(vector, anchors[a]);
+
+			int cluster = 0;
+			for(int c = 1; c < medoids.length; c++){
+				if (medoids[c] >= 0 && (medoids[cluster] < 0 || distances[medoids[c]] < distances[medoids[cluster]]))
+					cluster = c;
+			}
+
+			int[] neighbors = nearest(distances, Math.min(numNeighbors, anchors.length));
+			double x = 0, y = 0, weights = 0;
+			for(int a : neighbors){
+				double w = 1.0 / (distances[a] + EPSILON);
+				x += w * coordinates[a][0];
+				y += w * coordinates[a][1];
+				weights += w;
+			}
+			placements.add(new Placement(cluster, new double[] { x / weights, y / weights }, neighbors));
+		}
+		return placements;
+	}
+
+	/**
+	 * @return estimated size in bytes
+	 */
+	public long estimateSize() {
+		long size = 64L * rows.size() + 4L * documentFrequencies.length;
+		for(DoubleMatrix1D anchor : anchors)
+			size += 8L * anchor.size() + 32;
+		return size + 24L * anchors.length;
+	}
+
+	/**
+	 * Builds term vectors of new documents. Terms not found in anchors are
+	 * ignored, weights use anchors' document frequencies.
+	 */
+	private DoubleMatrix1D[] vectorize(List<Document> documents) {
+		PreprocessingContext context = new BasicPreprocessingPipeline().preprocess(documents, null, language);
+		DoubleMatrix1D[] vectors = new DoubleMatrix1D[documents.size()];
+		for(int d = 0; d < vectors.length; d++)
+			vectors[d] = new DenseDoubleMatrix1D(documentFrequencies.length);
+
+		for(int stem = 0; stem < context.allStems.image.length; stem++){
+			Integer row = rows.get(new String(context.allStems.image[stem]));
+			if (row == null)
+				continue;
+			int[] tfByDocument = context.allStems.tfByDocument[stem];
+			for(int i = 0; i < tfByDocument.length; i += 2){
+				double weight = termWeighting.calculateTermWeight(tfByDocument[i + 1],
+						documentFrequencies[row], documentCount);
+				vectors[tfByDocument[i]].setQuick(row, weight);
+			}
+		}
+		return vectors;
+	}
+
+	private static int[] nearest(double[] distances, int k) {
+		Integer[] order = new Integer[distances.length];
+		for(int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+		int[] nearest = new int[k];
+		for(int i = 0; i < k; i++)
+			nearest[i] = order[i];
+		return nearest;
+	}
+}
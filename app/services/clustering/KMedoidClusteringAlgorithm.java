@@ -122,7 +122,7 @@ public class KMedoidClusteringAlgorithm extends ProcessingComponentBase {
 	@Processing
 	@Input
 	@Attribute(key = DISTANCE_MEASURE)
-	@ImplementingClasses(classes = {EuclideanDistance.class}, strict = false)
+	@ImplementingClasses(classes = {EuclideanDistance.class, CosineDistance.class, AngularDistance.class}, strict = false)
 	public DistanceMeasure dm = new EuclideanDistance();
 
 	/**
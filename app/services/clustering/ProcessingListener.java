@@ -0,0 +1,34 @@
+package services.clustering;
+
+import java.util.List;
+
+import org.carrot2.core.Cluster;
+
+/**
+ * Receives partial results of {@link SearchProcessing} as soon as each
+ * phase finishes. It is also checked between phases, so processing stops
+ * early when results are no longer needed.
+ *
+ * @author jose
+ */
+public interface ProcessingListener {
+
+	/**
+	 * Called after documents are assigned to clusters.
+	 * @param clusters clusters without coordinates
+	 */
+	public void onClusters(List<Cluster> clusters);
+
+	/**
+	 * Called after documents are projected.
+	 * @param clusters clusters with "coordinates" and "neighbors" attributes
+	 */
+	public void onLayout(List<Cluster> clusters);
+
+	/**
+	 * @return true if processing should stop
+	 */
+	public default boolean isCancelled() {
+		return false;
+	}
+}
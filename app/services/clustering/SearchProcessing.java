@@ -38,6 +38,7 @@ import org.carrot2.util.attribute.constraint.IntRange;
 
 import com.carrotsearch.hppc.IntArrayList;
 
+import services.PhaseTimer;
 import services.mp.MultidimensionalProjection;
 
 @Bindable(prefix = "SearchProcessing", inherit = CommonAttributes.class)
@@ -45,6 +46,16 @@ public class SearchProcessing extends ProcessingComponentBase {
 
 	public static final String NUM_NEIGHBORS = "num_neighbors";
 
+	public static final String LISTENER = "processing_listener";
+
+	public static final String LAYOUT = "incremental_layout";
+
+	public static final String TIMER = "phase_timer";
+
+	public static final String MAPPED_DISTANCES_THRESHOLD = "mapped_distances_threshold";
+
+	public static final String BUILD_LAYOUT = "build_layout";
+
 	@Processing
 	@Input
 	@Required
@@ -58,6 +69,16 @@ public class SearchProcessing extends ProcessingComponentBase {
 	@Attribute(key = AttributeNames.CLUSTERS, inherit = true)
 	public List<Cluster> clusters = null;
 
+	/**
+	 * Layout for placing more documents into the clusters, if
+	 * {@link #buildLayout} is set.
+	 */
+	@Processing
+	@Output
+	@Internal
+	@Attribute(key = LAYOUT)
+	public IncrementalLayout layout = null;
+
 	/**
 	 * The number of clusters to create. The algorithm will create at most the specified
 	 * number of clusters.
@@ -108,7 +129,7 @@ public class SearchProcessing extends ProcessingComponentBase {
 	@Processing
 	@Input
 	@Attribute(key = KMedoidClusteringAlgorithm.DISTANCE_MEASURE)
-	@ImplementingClasses(classes = {EuclideanDistance.class}, strict = false)
+	@ImplementingClasses(classes = {EuclideanDistance.class, CosineDistance.class, AngularDistance.class}, strict = false)
 	public DistanceMeasure dm = new EuclideanDistance();
 
 	@Processing
@@ -119,6 +140,49 @@ public class SearchProcessing extends ProcessingComponentBase {
 	@Label("Number of neighbors")
 	public int numNeighbors = 10;
 
+	/**
+	 * Number of documents from which the distance matrix is stored off heap,
+	 * in a memory-mapped file.
+	 */
+	@Processing
+	@Input
+	@Attribute(key = MAPPED_DISTANCES_THRESHOLD)
+	@IntRange(min = 2)
+	@Level(AttributeLevel.ADVANCED)
+	@Label("Mapped distances threshold")
+	public int mappedDistancesThreshold = 10000;
+
+	/**
+	 * Whether to build the {@link #layout}. It keeps term vectors of all
+	 * documents, so it is only built for searches that can be paginated.
+	 */
+	@Processing
+	@Input
+	@Attribute(key = BUILD_LAYOUT)
+	@Level(AttributeLevel.ADVANCED)
+	@Label("Build incremental layout")
+	public boolean buildLayout = false;
+
+	/**
+	 * Receives clusters and layout as soon as they are ready. Optional.
+	 */
+	@Processing
+	@Input
+	@Internal
+	@Attribute(key = LISTENER)
+	@ImplementingClasses(classes = {}, strict = false)
+	public ProcessingListener listener = null;
+
+	/**
+	 * Times processing phases of the request. Optional.
+	 */
+	@Processing
+	@Input
+	@Internal
+	@Attribute(key = TIMER)
+	@ImplementingClasses(classes = {}, strict = false)
+	public PhaseTimer timer = null;
+
 	/**
 	 * Term-document matrix builder for the algorithm, contains bindable attributes.
 	 */
@@ -149,6 +213,7 @@ public class SearchProcessing extends ProcessingComponentBase {
 		// processing components are not thread-safe by definition and 
 		// IMonolingualClusteringAlgorithm forbids concurrent execution by contract.
 		final List<Document> originalDocuments = documents;
+		layout = null;
 		clusters = multilingualClustering.process(documents,
 				new IMonolingualClusteringAlgorithm()
 		{
@@ -167,9 +232,13 @@ public class SearchProcessing extends ProcessingComponentBase {
 	 */
 	protected void process(LanguageCode language)
 	{
+		final PhaseTimer timer = this.timer != null ? this.timer : PhaseTimer.DISABLED;
+
 		// Preprocessing of documents
-		final PreprocessingContext preprocessingContext = 
-				preprocessingPipeline.preprocess(documents, null, language);
+		final PreprocessingContext preprocessingContext;
+		try (PhaseTimer.Phase phase = timer.start("preprocessing")) {
+			preprocessingContext = preprocessingPipeline.preprocess(documents, null, language);
+		}
 
 		// Add trivial AllLabels so that we can reuse the common TD matrix builder
 		final int [] stemsMfow = preprocessingContext.allStems.mostFrequentOriginalWordIndex;
@@ -193,8 +262,10 @@ public class SearchProcessing extends ProcessingComponentBase {
 			final VectorSpaceModelContext vsmContext = new VectorSpaceModelContext(
 					preprocessingContext);
 
-			matrixBuilder.buildTermDocumentMatrix(vsmContext);
-			matrixBuilder.buildTermPhraseMatrix(vsmContext);
+			try (PhaseTimer.Phase phase = timer.start("tdm")) {
+				matrixBuilder.buildTermDocumentMatrix(vsmContext);
+				matrixBuilder.buildTermPhraseMatrix(vsmContext);
+			}
 
 			final DoubleMatrix2D tdMatrix = vsmContext.termDocumentMatrix;
 			
@@ -205,14 +276,32 @@ public class SearchProcessing extends ProcessingComponentBase {
 			pam.maxIterations = maxIterations;
 			pam.numClusters = numClusters;
 			
-			// Calculate distance matrix
-			DistanceMatrix distanceMatrix = new DistanceMatrix(tdMatrix.viewDice(), dm);			
-			int[] controlPoints = pam.cluster(vsmContext, preprocessingContext, distanceMatrix);
-			clusters = pam.clusters;
-			
-			MultidimensionalProjection mp = new MultidimensionalProjection(maxIterations, numNeighbors);
-			double[][] projection = mp.project(distanceMatrix, controlPoints);
-			int[][] neighbors = mp.getNeighbors();
+			// Calculate distance matrix, off heap for large result sets
+			DistanceMatrix distanceMatrix;
+			try (PhaseTimer.Phase phase = timer.start("distances")) {
+				distanceMatrix = new DistanceMatrix(tdMatrix.viewDice(), dm, 
+						documents.size() >= mappedDistancesThreshold);
+			}
+			int[] controlPoints;
+			double[][] projection;
+			int[][] neighbors;
+			try {
+				checkCancelled();
+				try (PhaseTimer.Phase phase = timer.start("kmedoids")) {
+					controlPoints = pam.cluster(vsmContext, preprocessingContext, distanceMatrix);
+				}
+				clusters = pam.clusters;
+				if (listener != null)
+					listener.onClusters(clusters);
+				checkCancelled();
+
+				MultidimensionalProjection mp = new MultidimensionalProjection(maxIterations, numNeighbors);
+				mp.setTimer(timer);
+				projection = mp.project(distanceMatrix, controlPoints);
+				neighbors = mp.getNeighbors();
+			} finally {
+				distanceMatrix.close();
+			}
 			
 			for(int i = 0; i < documents.size(); i++)
 				documents.get(i).setField("index", i);
@@ -231,6 +320,18 @@ public class SearchProcessing extends ProcessingComponentBase {
 					cluster.setAttribute("neighbors", clusterNbs);
 				}
 			}
+			if (buildLayout)
+				try (PhaseTimer.Phase phase = timer.start("layout")) {
+					layout = IncrementalLayout.create(preprocessingContext, vsmContext, matrixBuilder.termWeighting, 
+							dm, language, projection, clusters, controlPoints, numNeighbors);
+				}
+			if (listener != null)
+				listener.onLayout(clusters);
 		}
 	}
+
+	private void checkCancelled() throws ProcessingException {
+		if (listener != null && listener.isCancelled())
+			throw new ProcessingException("Processing cancelled");
+	}
 }
@@ -0,0 +1,223 @@
+package services.clustering;
+
+import java.util.Arrays;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+
+/**
+ * Rows of a matrix in compressed sparse row (CSR) form, with their squared
+ * norms, for batched distance computations (see
+ * {@link DistanceMeasure#measureRow(SparseVectors, int, int, int, double[])}).
+ * <p>TF-IDF document vectors are mostly zeros, so dot products only visit
+ * non-zero values: a row is scattered once into a dense scratch array and
+ * dot products with other rows iterate their non-zero values. No object is
+ * allocated per pair. Instances are not thread-safe, since the scratch array
+ * is shared.</p>
+ *
+ * @author jose
+ */
+public class SparseVectors {
+
+	private final int rows;
+
+	private final int dimension;
+
+	/**
+	 * Start of each row in {@link #indices} and {@link #values}, plus the end
+	 */
+	private final int[] rowStart;
+
+	private final int[] indices;
+
+	private final double[] values;
+
+	private final double[] squaredNorms;
+
+	private final double[] norms;
+
+	/**
+	 * Dense copy of the row being compared
+	 */
+	private final double[] scratch;
+
+	private int scattered = -1;
+
+	private SparseVectors(int rows, int dimension, int[] rowStart, int[] indices, double[] values) {
+		this.rows = rows;
+		this.dimension = dimension;
+		this.rowStart = rowStart;
+		this.indices = indices;
+		this.values = values;
+		this.scratch = new double[dimension];
+		this.squaredNorms = new double[rows];
+		this.norms = new double[rows];
+		for (int i = 0; i < rows; i++) {
+			double norm = 0;
+			for (int k = rowStart[i]; k < rowStart[i + 1]; k++)
+				norm += values[k] * values[k];
+			squaredNorms[i] = norm;
+			norms[i] = Math.sqrt(norm);
+		}
+	}
+
+	/**
+	 * Copies non-zero values of the rows of a matrix.
+	 * @param matrix the matrix, one vector by row
+	 * @return the sparse rows
+	 */
+	public static SparseVectors of(DoubleMatrix2D matrix) {
+		Builder builder = new Builder(matrix.rows(), matrix.columns());
+		for (int i = 0; i < matrix.rows(); i++) {
+			for (int j = 0; j < matrix.columns(); j++)
+				builder.add(j, matrix.getQuick(i, j));
+			builder.endRow();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Copies non-zero values of the rows of a matrix.
+	 * @param matrix the matrix, one vector by row
+	 * @return the sparse rows
+	 */
+	public static SparseVectors of(org.carrot2.mahout.math.matrix.DoubleMatrix2D matrix) {
+		Builder builder = new Builder(matrix.rows(), matrix.columns());
+		for (int i = 0; i < matrix.rows(); i++) {
+			for (int j = 0; j < matrix.columns(); j++)
+				builder.add(j, matrix.getQuick(i, j));
+			builder.endRow();
+		}
+		return builder.build();
+	}
+
+	public int rows() {
+		return rows;
+	}
+
+	public int dimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return squared euclidean norm of a row
+	 */
+	public double squaredNorm(int row) {
+		return squaredNorms[row];
+	}
+
+	/**
+	 * @return euclidean norm of a row
+	 */
+	public double norm(int row) {
+		return norms[row];
+	}
+
+	/**
+	 * Computes dot products of a row with a range of rows.
+	 * @param row the row
+	 * @param from first row of the range
+	 * @param to end of the range (exclusive)
+	 * @param dots receives the dot product with row <code>from + k</code> at <code>k</code>
+	 */
+	public void dots(int row, int from, int to, double[] dots) {
+		scatter(row);
+		for (int j = from; j < to; j++) {
+			double dot = 0;
+			for (int k = rowStart[j]; k < rowStart[j + 1]; k++)
+				dot += values[k] * scratch[indices[k]];
+			dots[j - from] = dot;
+		}
+	}
+
+	/**
+	 * @return dot product of two rows
+	 */
+	public double dot(int rowA, int rowB) {
+		if (scattered != rowA && scattered == rowB) {
+			int swap = rowA;
+			rowA = rowB;
+			rowB = swap;
+		}
+		scatter(rowA);
+		double dot = 0;
+		for (int k = rowStart[rowB]; k < rowStart[rowB + 1]; k++)
+			dot += values[k] * scratch[indices[k]];
+		return dot;
+	}
+
+	/**
+	 * Copies a row to a dense vector. Used by measures without a batched
+	 * implementation.
+	 * @return a new dense vector
+	 */
+	public DoubleMatrix1D row(int row) {
+		DoubleMatrix1D vector = new DenseDoubleMatrix1D(dimension);
+		for (int k = rowStart[row]; k < rowStart[row + 1]; k++)
+			vector.setQuick(indices[k], values[k]);
+		return vector;
+	}
+
+	/**
+	 * Makes the scratch array a dense copy of a row, clearing the
+	 * previous row.
+	 */
+	private void scatter(int row) {
+		if (scattered == row)
+			return;
+		if (scattered >= 0)
+			for (int k = rowStart[scattered]; k < rowStart[scattered + 1]; k++)
+				scratch[indices[k]] = 0;
+		for (int k = rowStart[row]; k < rowStart[row + 1]; k++)
+			scratch[indices[k]] = values[k];
+		scattered = row;
+	}
+
+	/**
+	 * Appends non-zero values row by row.
+	 */
+	private static final class Builder {
+
+		private final int rows;
+
+		private final int dimension;
+
+		private final int[] rowStart;
+
+		private int[] indices = new int[1024];
+
+		private double[] values = new double[1024];
+
+		private int size;
+
+		private int row;
+
+		Builder(int rows, int dimension) {
+			this.rows = rows;
+			this.dimension = dimension;
+			this.rowStart = new int[rows + 1];
+		}
+
+		void add(int index, double value) {
+			if (value == 0)
+				return;
+			if (size == indices.length) {
+				indices = Arrays.copyOf(indices, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			indices[size] = index;
+			values[size] = value;
+			size++;
+		}
+
+		void endRow() {
+			rowStart[++row] = size;
+		}
+
+		SparseVectors build() {
+			return new SparseVectors(rows, dimension, rowStart, Arrays.copyOf(indices, size),
+					Arrays.copyOf(values, size));
+		}
+	}
+}
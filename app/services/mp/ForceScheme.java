@@ -2,6 +2,7 @@ package services.mp;
 
 import java.util.ArrayList;
 
+import cern.colt.matrix.DoubleMatrix2D;
 import services.clustering.DistanceMatrix;
 import services.clustering.DistanceMeasure;
 
@@ -114,7 +115,11 @@ public class ForceScheme
 		return error;
 	}
 
-	public float iteration(DistanceMatrix matrix, DistanceMeasure diss, float[][] projection) {
+	/**
+	 * Iteration computing distances from the data matrix (one element
+	 * by row) instead of a distance matrix.
+	 */
+	public float iteration(DoubleMatrix2D matrix, DistanceMeasure diss, float[][] projection) {
 		float error = 0.0F;
 
 		if (projection[0].length == 2)
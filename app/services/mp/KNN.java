@@ -62,7 +62,7 @@ public class KNN
 		}
 		long finish = System.currentTimeMillis();
 
-		Logger.getLogger(getClass().getName()).log(Level.INFO, "KNN time: " + (float)(finish - start) / 1000.0F + "s");
+		Logger.getLogger(getClass().getName()).log(Level.FINE, "KNN time: " + (float)(finish - start) / 1000.0F + "s");
 
 
 		return neighbors;
@@ -1,13 +1,16 @@
 package services.mp;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import cern.colt.list.DoubleArrayList;
+import cern.colt.list.IntArrayList;
 import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.impl.DenseDoubleMatrix2D;
 import cern.colt.matrix.impl.SparseDoubleMatrix2D;
-import cern.colt.matrix.linalg.CholeskyDecomposition;
+import services.PhaseTimer;
 import services.clustering.DistanceMatrix;
 import services.clustering.EuclideanDistance;
 import services.clustering.KMedoidClusteringAlgorithm;
@@ -15,10 +18,22 @@ import services.clustering.KMedoidClusteringAlgorithm;
 
 public class MultidimensionalProjection {
 
+	/**
+	 * Maximum number of iterations of the least squares solver
+	 */
+	private static final int MAX_SOLVER_ITERATIONS = 2000;
+
+	/**
+	 * Norm of the normal equations residual, relative to the initial one,
+	 * at which the least squares solver stops
+	 */
+	private static final double SOLVER_TOLERANCE = 1e-6;
+
 	private int numberIterations = 50;
 	private int numberOfNeighbors = 2;
 	private float delta = 0.8f;
 	private int[][] neighbors;
+	private PhaseTimer timer = PhaseTimer.DISABLED;
 
 	public MultidimensionalProjection() {
 		
@@ -34,6 +49,14 @@ public class MultidimensionalProjection {
 		this(maxIterations, numberOfNeighbors, 0.8f);
 	}
 
+	/**
+	 * Sets the timer of projection phases: nnp, force, knn and solve.
+	 * @param timer the request timer
+	 */
+	public void setTimer(PhaseTimer timer) {
+		this.timer = timer;
+	}
+
 	public double[][] project(DistanceMatrix distanceMatrix, int[] controlPoints)
 	{
 		final int nrCp = controlPoints.length; 
@@ -49,17 +72,25 @@ public class MultidimensionalProjection {
 		
 		try {
 			NearestNeighborProjection projector = new NearestNeighborProjection();
-			double[][] projectionCP = projector.project(dmatCP);
+			double[][] projectionCP;
+			try (PhaseTimer.Phase phase = timer.start("nnp")) {
+				projectionCP = projector.project(dmatCP);
+			}
 
 			if (projectionCP != null) {
-				ForceScheme force = new ForceScheme(delta , projectionCP.length);
-				for (int i = 0; i < numberIterations ; i++) {
-					force.iteration(dmatCP, projectionCP);
+				try (PhaseTimer.Phase phase = timer.start("force")) {
+					ForceScheme force = new ForceScheme(delta , projectionCP.length);
+					for (int i = 0; i < numberIterations ; i++) {
+						force.iteration(dmatCP, projectionCP);
+					}
 				}
 			}
 
 			KNN knnmesh = new KNN(numberOfNeighbors );
-			Pair[][] mesh = knnmesh.execute(distanceMatrix);
+			Pair[][] mesh;
+			try (PhaseTimer.Phase phase = timer.start("knn")) {
+				mesh = knnmesh.execute(distanceMatrix);
+			}
 			
 			//Compute neighbors
 			neighbors = new int[mesh.length][numberOfNeighbors];
@@ -83,7 +114,9 @@ public class MultidimensionalProjection {
 	private double[][] createFinalProjection(Pair[][] neighbors, DistanceMatrix dmat, int[] controlPoints, double[][] projectionCP)
 	{
 		double[][] projection = new double[dmat.getElementCount()][];
-		projectUsingColt(neighbors, projection, controlPoints, projectionCP);
+		try (PhaseTimer.Phase phase = timer.start("solve")) {
+			projectUsingColt(neighbors, projection, controlPoints, projectionCP);
+		}
 		Runtime.getRuntime().gc();
 
 		return projection;
@@ -143,22 +176,101 @@ public class MultidimensionalProjection {
 			B.setQuick(neighbors.length + i, 1, projectionCP[i][1]);
 		}
 
-		DoubleMatrix2D AtA = A.zMult(A, null, 1.0D, 1.0D, true, false);
-		DoubleMatrix2D AtB = A.zMult(B, null, 1.0D, 1.0D, true, false);
+		// A has a few non zeros by row: solve A x = B in the least squares sense
+		// iteratively with products by A and its transpose, instead of 
+		// factoring the dense n x n normal equations matrix
+		IntArrayList rows = new IntArrayList();
+		IntArrayList columns = new IntArrayList();
+		DoubleArrayList values = new DoubleArrayList();
+		A.getNonZeros(rows, columns, values);
+		int nnz = values.size();
+		int[] row = rows.elements();
+		int[] column = columns.elements();
+		double[] value = values.elements();
 
-		start = System.currentTimeMillis();
-		CholeskyDecomposition chol = new CholeskyDecomposition(AtA);
-		DoubleMatrix2D X = chol.solve(AtB);
+		// Scale columns to unit norm (Jacobi preconditioning of the normal equations)
+		double[] scale = new double[nColumns];
+		for (int k = 0; k < nnz; k++)
+			scale[column[k]] += value[k] * value[k];
+		for (int j = 0; j < nColumns; j++)
+			scale[j] = scale[j] > 0 ? 1.0D / Math.sqrt(scale[j]) : 1.0D;
+		for (int k = 0; k < nnz; k++)
+			value[k] *= scale[column[k]];
 
-		for (int i = 0; i < X.rows(); i++) {
+		start = System.currentTimeMillis();
+		for (int i = 0; i < nColumns; i++)
 			projection[i] = new double[2];
-			projection[i][0] = ((float)X.getQuick(i, 0));
-			projection[i][1] = ((float)X.getQuick(i, 1));
+		for (int d = 0; d < 2; d++) {
+			double[] b = new double[nRows];
+			for (int i = 0; i < nRows; i++)
+				b[i] = B.getQuick(i, d);
+			double[] x = solveLeastSquares(nRows, nColumns, nnz, row, column, value, b);
+			for (int i = 0; i < nColumns; i++)
+				projection[i][d] = (float) (x[i] * scale[i]);
 		}
 
 		long finish = System.currentTimeMillis();
 
-		Logger.getLogger(getClass().getName()).log(Level.INFO, "Solving the system using Colt time: " + (float)(finish - start) / 1000.0F + "s");
+		Logger.getLogger(getClass().getName()).log(Level.FINE, "Solving the system using Colt time: " + (float)(finish - start) / 1000.0F + "s");
+	}
+
+	/**
+	 * Minimizes ||A x - b|| with conjugate gradients on the normal equations 
+	 * (CGLS), using only products by A and its transpose.
+	 * @param nRows rows of A
+	 * @param nColumns columns of A
+	 * @param nnz number of non zeros of A
+	 * @param row row of each non zero
+	 * @param column column of each non zero
+	 * @param value each non zero
+	 * @param b right hand side, one value by row
+	 * @return x, one value by column
+	 */
+	private static double[] solveLeastSquares(int nRows, int nColumns, int nnz, int[] row, int[] column, 
+			double[] value, double[] b) {
+		double[] x = new double[nColumns];
+		double[] r = b.clone();
+		double[] s = new double[nColumns];
+		double[] q = new double[nRows];
+
+		for (int k = 0; k < nnz; k++)
+			s[column[k]] += value[k] * r[row[k]];
+		double[] p = s.clone();
+		double gamma = dot(s, s);
+		double threshold = SOLVER_TOLERANCE * SOLVER_TOLERANCE * gamma;
+
+		int iteration = 0;
+		while (gamma > threshold && iteration < MAX_SOLVER_ITERATIONS) {
+			Arrays.fill(q, 0);
+			for (int k = 0; k < nnz; k++)
+				q[row[k]] += value[k] * p[column[k]];
+			double alpha = gamma / dot(q, q);
+			for (int j = 0; j < nColumns; j++)
+				x[j] += alpha * p[j];
+			for (int i = 0; i < nRows; i++)
+				r[i] -= alpha * q[i];
+
+			Arrays.fill(s, 0);
+			for (int k = 0; k < nnz; k++)
+				s[column[k]] += value[k] * r[row[k]];
+			double next = dot(s, s);
+			double beta = next / gamma;
+			for (int j = 0; j < nColumns; j++)
+				p[j] = s[j] + beta * p[j];
+			gamma = next;
+			iteration++;
+		}
+
+		Logger.getLogger(MultidimensionalProjection.class.getName()).log(Level.FINE, 
+				"Least squares solved in " + iteration + " iterations");
+		return x;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+			sum += a[i] * b[i];
+		return sum;
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -0,0 +1,153 @@
+package services.search;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import org.carrot2.core.Cluster;
+
+/**
+ * Writes a {@link SearchResult} in a compact binary frame. Cluster
+ * coordinates and neighbors are written as typed arrays instead of Json
+ * numbers, so browsers can read them with no parsing.
+ * <p>Frame layout (little-endian, all sections 4-byte aligned):</p>
+ * <pre>
+ * magic      4 bytes  "EPCB"
+ * format     uint32   1 = float32 coordinates, 2 = 16-bit quantized coordinates
+ * clusters   uint32   number of (top level) clusters, in Json order
+ * for each cluster:
+ *   n        uint32   number of documents with coordinates (0 if none)
+ *   k        uint32   number of neighbors per document
+ *   float32:  n*2 float32 (x, y)
+ *   quantized: float32 minX, minY, scaleX, scaleY then n*2 uint16,
+ *              where x = minX + qx * scaleX
+ *   n*k int32 neighbors
+ * json       remaining bytes: UTF-8 Json without "coordinates" and "neighbors"
+ * </pre>
+ * <p>The frame without the Json ({@link #writeLayout(List, OutputStream)}) is 
+ * also the <code>layout</code> event of progressive searches (see {@link SearchEvents}).</p>
+ *
+ * @author jose
+ */
+public class BinaryResultWriter {
+
+	/**
+	 * Media type of frames with float32 coordinates.
+	 */
+	public static final String MEDIA_TYPE = "application/x-ep-clusters";
+
+	/**
+	 * Media type of frames with 16-bit quantized coordinates.
+	 */
+	public static final String MEDIA_TYPE_QUANTIZED = "application/x-ep-clusters-q16";
+
+	private static final byte[] MAGIC = { 'E', 'P', 'C', 'B' };
+
+	private static final int FORMAT_FLOAT32 = 1;
+
+	private static final int FORMAT_QUANTIZED = 2;
+
+	private static final int MAX_QUANTIZED = 0xFFFF;
+
+	private final boolean quantized;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(8192).order(ByteOrder.LITTLE_ENDIAN);
+
+	public BinaryResultWriter(boolean quantized) {
+		this.quantized = quantized;
+	}
+
+	/**
+	 * Writes the frame. The output stream is not closed.
+	 * @param result the search result
+	 * @param out the output stream
+	 * @throws IOException if the stream can't be written
+	 */
+	public void write(SearchResult result, OutputStream out) throws IOException {
+		writeLayout(result.getClusters(), out);
+		result.writeJson(out, SearchResult.LAYOUT_ATTRIBUTES);
+	}
+
+	/**
+	 * Writes the frame up to the Json: coordinates and neighbors of each 
+	 * cluster. The output stream is not closed.
+	 * @param clusters the top level clusters
+	 * @param out the output stream
+	 * @throws IOException if the stream can't be written
+	 */
+	public void writeLayout(List<Cluster> clusters, OutputStream out) throws IOException {
+		buffer.clear();
+		buffer.put(MAGIC);
+		buffer.putInt(quantized ? FORMAT_QUANTIZED : FORMAT_FLOAT32);
+		buffer.putInt(clusters.size());
+
+		for(Cluster cluster : clusters){
+			double[][] coordinates = cluster.getAttribute("coordinates");
+			int[][] neighbors = cluster.getAttribute("neighbors");
+			int n = coordinates != null ? coordinates.length : 0;
+			int k = neighbors != null && neighbors.length > 0 ? neighbors[0].length : 0;
+
+			ensureRemaining(out, 8);
+			buffer.putInt(n);
+			buffer.putInt(k);
+			if (n == 0)
+				continue;
+
+			if (quantized)
+				writeQuantized(coordinates, out);
+			else {
+				for(double[] point : coordinates){
+					ensureRemaining(out, 8);
+					buffer.putFloat((float) point[0]);
+					buffer.putFloat((float) point[1]);
+				}
+			}
+
+			for(int i = 0; i < n; i++){
+				int[] nb = i < neighbors.length ? neighbors[i] : null;
+				for(int j = 0; j < k; j++){
+					ensureRemaining(out, 4);
+					buffer.putInt(nb != null && j < nb.length ? nb[j] : -1);
+				}
+			}
+		}
+		flush(out);
+	}
+
+	private void writeQuantized(double[][] coordinates, OutputStream out) throws IOException {
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for(double[] point : coordinates){
+			minX = Math.min(minX, point[0]);
+			maxX = Math.max(maxX, point[0]);
+			minY = Math.min(minY, point[1]);
+			maxY = Math.max(maxY, point[1]);
+		}
+		double scaleX = maxX > minX ? (maxX - minX) / MAX_QUANTIZED : 1;
+		double scaleY = maxY > minY ? (maxY - minY) / MAX_QUANTIZED : 1;
+
+		ensureRemaining(out, 16);
+		buffer.putFloat((float) minX);
+		buffer.putFloat((float) minY);
+		buffer.putFloat((float) scaleX);
+		buffer.putFloat((float) scaleY);
+
+		for(double[] point : coordinates){
+			ensureRemaining(out, 4);
+			buffer.putShort((short) Math.round((point[0] - minX) / scaleX));
+			buffer.putShort((short) Math.round((point[1] - minY) / scaleY));
+		}
+	}
+
+	private void ensureRemaining(OutputStream out, int bytes) throws IOException {
+		if (buffer.remaining() < bytes)
+			flush(out);
+	}
+
+	private void flush(OutputStream out) throws IOException {
+		out.write(buffer.array(), 0, buffer.position());
+		buffer.clear();
+	}
+}
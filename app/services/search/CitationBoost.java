@@ -0,0 +1,108 @@
+package services.search;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.DoubleDocValues;
+
+/**
+ * Citation boost of a document, read from the static rank field.
+ * It is applied once per document by wrapping the search query in a
+ * {@link org.apache.lucene.queries.function.BoostedQuery}, instead of
+ * multiplying each term score.
+ * <p>The static rank field stores number of citations plus one. The boost
+ * of a document with <code>c</code> citations is:</p>
+ * <ul>
+ * <li>{@link Dampening#NONE}: <code>c + 1</code>;</li>
+ * <li>{@link Dampening#LOG}: <code>1 + ln(1 + c)</code>;</li>
+ * <li>{@link Dampening#SATURATION}: <code>1 + weight * c / (c + k)</code>.</li>
+ * </ul>
+ * All functions are non-decreasing, so static rank order is kept.
+ *
+ * @author jose
+ */
+public class CitationBoost extends ValueSource {
+
+	public enum Dampening {
+		NONE, LOG, SATURATION
+	}
+
+	private final Dampening dampening;
+
+	private final double k;
+
+	private final double weight;
+
+	/**
+	 * Creates a new citation boost.
+	 * @param dampening the dampening function
+	 * @param k number of citations of half saturation
+	 * @param weight maximum extra boost of saturation
+	 */
+	public CitationBoost(Dampening dampening, double k, double weight) {
+		this.dampening = dampening;
+		this.k = k;
+		this.weight = weight;
+	}
+
+	/**
+	 * Parses the dampening function name (none, log or saturation).
+	 * @param name function name
+	 * @return the dampening function
+	 */
+	public static Dampening dampening(String name) {
+		return Dampening.valueOf(name.trim().toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * @param rank static rank: number of citations plus one
+	 * @return the boost
+	 */
+	public double boost(long rank) {
+		double citations = Math.max(0L, rank - 1);
+		switch (dampening) {
+		case LOG:
+			return 1 + Math.log1p(citations);
+		case SATURATION:
+			return 1 + weight * citations / (citations + k);
+		default:
+			return citations + 1;
+		}
+	}
+
+	@Override
+	public FunctionValues getValues(@SuppressWarnings("rawtypes") Map context, LeafReaderContext readerContext)
+			throws IOException {
+		final NumericDocValues ranks = DocValues.getNumeric(readerContext.reader(), StaticRankCollector.FIELD);
+		return new DoubleDocValues(this) {
+			@Override
+			public double doubleVal(int doc) {
+				return boost(ranks.get(doc));
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof CitationBoost))
+			return false;
+		CitationBoost other = (CitationBoost) o;
+		return dampening == other.dampening && k == other.k && weight == other.weight;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * dampening.hashCode() + Double.hashCode(k)) + Double.hashCode(weight);
+	}
+
+	@Override
+	public String description() {
+		return "citations(" + dampening.name().toLowerCase(Locale.ROOT) + ",k=" + k + ",weight=" + weight + ")";
+	}
+}
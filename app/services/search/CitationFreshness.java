@@ -0,0 +1,106 @@
+package services.search;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import services.DatabaseHelper;
+
+/**
+ * Keeps citation counts read from the index fresh, without querying
+ * the graph during searches.
+ * <p>The index citation counts are only updated when documents are indexed,
+ * so they can lag behind the graph. After a search, the counts of its hits
+ * are checked against the graph in background, with a single query. Counts
+ * found in the graph are remembered and used by next searches instead of the
+ * index values, until they get older than the maximum age.</p>
+ * <p>Checks run on a single thread with a bounded queue: checks submitted
+ * while the queue is full are dropped, since they are only an optimization.</p>
+ *
+ * @author jose
+ */
+public class CitationFreshness {
+
+	private static final Logger logger = LoggerFactory.getLogger(CitationFreshness.class);
+
+	private final ThreadPoolExecutor executor;
+
+	private final int maxEntries;
+
+	private final long maxAge;
+
+	/**
+	 * Citations count in the graph and time it was read, by document key
+	 */
+	private final LinkedHashMap<String, long[]> counts = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Creates a new freshness checker.
+	 * @param queueSize maximum number of checks waiting
+	 * @param maxEntries maximum number of counts remembered
+	 * @param maxAge time in milliseconds a count is valid
+	 */
+	public CitationFreshness(int queueSize, int maxEntries, long maxAge) {
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize), r -> {
+					Thread t = new Thread(r, "citation-freshness");
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	/**
+	 * @param key document key
+	 * @return the citations count found in the graph, or null if
+	 * it is unknown or too old
+	 */
+	public synchronized Long get(String key) {
+		long[] count = counts.get(key);
+		if (count == null || System.currentTimeMillis() - count[1] > maxAge)
+			return null;
+		return count[0];
+	}
+
+	/**
+	 * Checks citation counts in the graph in background. Documents
+	 * checked recently are skipped.
+	 * @param keys document keys
+	 */
+	public void check(List<String> keys) {
+		List<String> stale = new ArrayList<>(keys.size());
+		synchronized (this) {
+			for(String key : keys)
+				if (key != null && get(key) == null)
+					stale.add(key);
+		}
+		if (stale.isEmpty())
+			return;
+		executor.execute(() -> {
+			try {
+				Map<String, Long> citations = DatabaseHelper.getNumberOfCitations(stale);
+				long now = System.currentTimeMillis();
+				synchronized (this) {
+					for(Map.Entry<String, Long> entry : citations.entrySet())
+						counts.put(entry.getKey(), new long[] { entry.getValue(), now });
+					while (counts.size() > maxEntries)
+						counts.remove(counts.keySet().iterator().next());
+				}
+			} catch (Exception e) {
+				logger.warn("Can't check citation counts: " + e.getMessage());
+			}
+		});
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
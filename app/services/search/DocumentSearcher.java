@@ -1,15 +1,76 @@
 package services.search;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+import services.PhaseTimer;
+
 public interface DocumentSearcher {
-	
-	public String search(String terms) throws Exception;
-	
-	public String search(String terms, int count) throws Exception;
-	
-	public String search(String terms, boolean fetchNumberOfCitations) throws Exception;
-	
-	public String search(String terms, boolean fetchNumberOfCitations, int count) throws Exception;
-	
-	
+
+	public SearchResult search(String terms) throws Exception;
+
+	public SearchResult search(String terms, int count) throws Exception;
+
+	public SearchResult search(String terms, boolean fetchNumberOfCitations) throws Exception;
+
+	public SearchResult search(String terms, boolean fetchNumberOfCitations, int count) throws Exception;
+
+	/**
+	 * Searches asynchronously. By default the whole search runs on the compute
+	 * executor; searchers doing blocking I/O should override it to run
+	 * the I/O part on {@link SearchExecutors#io()}.
+	 * @param terms the search terms
+	 * @param fetchNumberOfCitations whether to fetch number of citations
+	 * @param count maximum number of documents
+	 * @param executors search executors
+	 * @return the search result
+	 */
+	public default CompletionStage<SearchResult> searchAsync(String terms, boolean fetchNumberOfCitations, int count,
+			SearchExecutors executors) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return search(terms, fetchNumberOfCitations, count);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, executors.compute());
+	}
+
+	/**
+	 * Searches asynchronously, timing search phases. By default the 
+	 * whole search is a single <code>search</code> phase.
+	 * @param terms the search terms
+	 * @param fetchNumberOfCitations whether to fetch number of citations
+	 * @param count maximum number of documents
+	 * @param executors search executors
+	 * @param timer the request timer
+	 * @return the search result
+	 */
+	public default CompletionStage<SearchResult> searchAsync(String terms, boolean fetchNumberOfCitations, int count,
+			SearchExecutors executors, PhaseTimer timer) {
+		final PhaseTimer.Phase phase = timer.start("search");
+		return searchAsync(terms, fetchNumberOfCitations, count, executors).whenComplete((result, e) -> phase.close());
+	}
+
+	/**
+	 * Searches asynchronously, sending partial results to a listener as soon as 
+	 * they are ready. By default the listener receives all partial results 
+	 * at once, when the search finishes.
+	 * @param terms the search terms
+	 * @param fetchNumberOfCitations whether to fetch number of citations
+	 * @param count maximum number of documents
+	 * @param listener receives hits, clusters and layout
+	 * @param executors search executors
+	 * @return the search result
+	 */
+	public default CompletionStage<SearchResult> searchProgressive(String terms, boolean fetchNumberOfCitations, 
+			int count, SearchListener listener, SearchExecutors executors) {
+		return searchAsync(terms, fetchNumberOfCitations, count, executors).thenApply(result -> {
+			if (result != null)
+				result.replay(listener);
+			return result;
+		});
+	}
 
 }
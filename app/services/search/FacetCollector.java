@@ -0,0 +1,138 @@
+package services.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Counts hits by value of the facet fields (sorted set doc values), while
+ * another collector collects the top hits (see
+ * {@link org.apache.lucene.search.MultiCollector}).
+ * <p>Hits are counted by ordinal in each segment; ordinals are resolved to
+ * values only for {@link #getFacets(int)}, which must be called while the
+ * searcher is still acquired.</p>
+ * <p>Segments indexed before facet fields had doc values count no hits
+ * (see {@link #hasFacetDocValues(LeafReader)}).</p>
+ *
+ * @author jose
+ */
+public class FacetCollector implements Collector {
+
+	/**
+	 * Facet fields
+	 */
+	public static final List<String> FIELDS = Collections.unmodifiableList(
+			Arrays.asList("year", "journal", "affiliation"));
+
+	/**
+	 * Counts of a segment, by ordinal
+	 */
+	private static final class LeafCounts {
+
+		final SortedSetDocValues values;
+
+		final int[] counts;
+
+		LeafCounts(SortedSetDocValues values) {
+			this.values = values;
+			this.counts = new int[(int) values.getValueCount()];
+		}
+	}
+
+	/**
+	 * Segment counts of each field
+	 */
+	private final Map<String, List<LeafCounts>> counts = new HashMap<>();
+
+	public FacetCollector() {
+		for(String field : FIELDS)
+			counts.put(field, new ArrayList<>());
+	}
+
+	/**
+	 * @return false if a facet field of the segment was indexed without sorted
+	 * set doc values, i.e. the segment was written before facets were added
+	 */
+	public static boolean hasFacetDocValues(LeafReader reader) {
+		for(String field : FIELDS){
+			FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+			if (info != null && info.getDocValuesType() != DocValuesType.SORTED_SET)
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+		final LeafCounts[] leafCounts = new LeafCounts[FIELDS.size()];
+		for(int i = 0; i < leafCounts.length; i++){
+			String field = FIELDS.get(i);
+			leafCounts[i] = new LeafCounts(DocValues.getSortedSet(context.reader(), field));
+			counts.get(field).add(leafCounts[i]);
+		}
+
+		return new LeafCollector() {
+
+			@Override
+			public void setScorer(Scorer scorer) throws IOException {
+			}
+
+			@Override
+			public void collect(int doc) throws IOException {
+				for(LeafCounts leaf : leafCounts){
+					leaf.values.setDocument(doc);
+					long ord;
+					while ((ord = leaf.values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS)
+						leaf.counts[(int) ord]++;
+				}
+			}
+		};
+	}
+
+	@Override
+	public boolean needsScores() {
+		return false;
+	}
+
+	/**
+	 * Returns the most frequent values of each facet field.
+	 * @param topN maximum number of values of each field
+	 * @return number of hits by value, most frequent first, by field
+	 */
+	public Map<String, Map<String, Integer>> getFacets(int topN) {
+		Map<String, Map<String, Integer>> facets = new LinkedHashMap<>();
+		for(String field : FIELDS){
+			Map<String, Integer> values = new HashMap<>();
+			for(LeafCounts leaf : counts.get(field))
+				for(int ord = 0; ord < leaf.counts.length; ord++)
+					if (leaf.counts[ord] > 0)
+						values.merge(leaf.values.lookupOrd(ord).utf8ToString(), leaf.counts[ord], Integer::sum);
+
+			Map<String, Integer> top = new LinkedHashMap<>();
+			values.entrySet().stream()
+				.sorted((a, b) -> {
+					int cmp = Integer.compare(b.getValue(), a.getValue());
+					return cmp != 0 ? cmp : a.getKey().compareTo(b.getKey());
+				})
+				.limit(topN)
+				.forEach(e -> top.put(e.getKey(), e.getValue()));
+			facets.put(field, top);
+		}
+		return facets;
+	}
+}
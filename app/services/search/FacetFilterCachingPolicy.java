@@ -0,0 +1,53 @@
+package services.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryCachingPolicy;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.UsageTrackingQueryCachingPolicy;
+
+/**
+ * Caches facet filters (terms of facet fields, see {@link FacetCollector})
+ * as soon as they are used, so drilling down a search reuses their bitsets.
+ * Other queries are cached as {@link UsageTrackingQueryCachingPolicy} does,
+ * which never caches term queries since they are cheap to run.
+ *
+ * @author jose
+ */
+public class FacetFilterCachingPolicy implements QueryCachingPolicy {
+
+	private final QueryCachingPolicy delegate = new UsageTrackingQueryCachingPolicy();
+
+	@Override
+	public void onUse(Query query) {
+		delegate.onUse(query);
+	}
+
+	@Override
+	public boolean shouldCache(Query query, LeafReaderContext context) throws IOException {
+		return isFacetFilter(query) || delegate.shouldCache(query, context);
+	}
+
+	/**
+	 * @return whether a query is a term of a facet field or a disjunction
+	 * of such terms
+	 */
+	static boolean isFacetFilter(Query query) {
+		if (query instanceof TermQuery)
+			return FacetCollector.FIELDS.contains(((TermQuery) query).getTerm().field());
+		if (query instanceof BooleanQuery){
+			BooleanQuery booleanQuery = (BooleanQuery) query;
+			if (booleanQuery.clauses().isEmpty())
+				return false;
+			for(BooleanClause clause : booleanQuery.clauses())
+				if (clause.getOccur() != BooleanClause.Occur.SHOULD || !isFacetFilter(clause.getQuery()))
+					return false;
+			return true;
+		}
+		return false;
+	}
+}
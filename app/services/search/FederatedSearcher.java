@@ -0,0 +1,314 @@
+package services.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.carrot2.core.Controller;
+import org.carrot2.core.ControllerFactory;
+import org.carrot2.core.Document;
+import org.carrot2.core.ProcessingResult;
+import org.carrot2.core.attribute.AttributeNames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import play.Configuration;
+import play.inject.ApplicationLifecycle;
+import services.PhaseTimer;
+import services.Utils;
+import services.clustering.DistanceMeasure;
+import services.clustering.EuclideanDistance;
+import services.clustering.KMedoidClusteringAlgorithm;
+import services.clustering.SearchProcessing;
+
+/**
+ * Searches the local index ({@link PapersIndexSearcher}) and Microsoft
+ * Academic ({@link MicrosoftAcademicSearcher}) concurrently and clusters
+ * the merged documents once.
+ * <p>Both searches share a deadline (<code>search.federated.deadline</code>):
+ * a searcher that hasn't finished by then, or that fails, contributes no
+ * documents, so the slower searcher doesn't set the search latency. It
+ * fails only if no searcher returns documents because all of them failed.</p>
+ * <p>Scores of each searcher are min-max normalized to [0, 1] before merging,
+ * since Lucene scores and Academic log probabilities aren't comparable.
+ * Documents found by both searchers (same DOI or same normalized title) are
+ * merged into the local document, keeping the best score, and have
+ * both sources.</p>
+ * <pre>
+ * documentSearcher = services.search.FederatedSearcher
+ * </pre>
+ *
+ * @author jose
+ */
+@Singleton
+public class FederatedSearcher implements DocumentSearcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(FederatedSearcher.class);
+
+	public static final String LOCAL = "local";
+
+	public static final String ACADEMIC = "academic";
+
+	/**
+	 * Fields copied from a duplicate to the merged document when missing
+	 */
+	private static final List<String> MERGED_FIELDS = Arrays.asList("doi", "year", "authors", "journal",
+			"conference", "fields", "abstract", "url");
+
+	private final PapersIndexSearcher papersSearcher;
+
+	private final MicrosoftAcademicSearcher academicSearcher;
+
+	private final SearchExecutors executors;
+
+	private final Controller controller;
+
+	private final long deadline;
+
+	/**
+	 * Completes searches that miss the deadline
+	 */
+	private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "federated-deadline");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private int numClusters = 10;
+
+	private final DistanceMeasure distanceMeasure;
+
+	private int maxIterations = 50;
+
+	private int numNeighbors = 10;
+
+	@Inject
+	public FederatedSearcher(Configuration configuration, PapersIndexSearcher papersSearcher,
+			MicrosoftAcademicSearcher academicSearcher, SearchExecutors executors, ApplicationLifecycle lifecycle) {
+		this.papersSearcher = papersSearcher;
+		this.academicSearcher = academicSearcher;
+		this.executors = executors;
+		this.controller = ControllerFactory.createPooling();
+		this.deadline = configuration.getMilliseconds("search.federated.deadline", 3000L);
+		this.distanceMeasure = DistanceMeasure.forName(configuration.getString("search.clustering.distanceMeasure",
+				EuclideanDistance.class.getName()));
+		lifecycle.addStopHook(() -> {
+			timeouts.shutdownNow();
+			return CompletableFuture.completedFuture(null);
+		});
+	}
+
+	public SearchResult search(String terms) throws Exception {
+		return search(terms, false, 100);
+	}
+
+	public SearchResult search(String terms, int count) throws Exception {
+		return search(terms, false, count);
+	}
+
+	public SearchResult search(String terms, boolean fetchNumberOfCitations) throws Exception {
+		return search(terms, fetchNumberOfCitations, 100);
+	}
+
+	public SearchResult search(String terms, boolean fetchNumberOfCitations, int count) throws Exception {
+		try {
+			return searchAsync(terms, fetchNumberOfCitations, count, executors).toCompletableFuture().join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	@Override
+	public CompletionStage<SearchResult> searchAsync(String terms, boolean fetchNumberOfCitations, int count,
+			SearchExecutors executors) {
+		return searchAsync(terms, fetchNumberOfCitations, count, executors, PhaseTimer.DISABLED);
+	}
+
+	/**
+	 * Searches both searchers on the I/O and compute executors, then merges
+	 * and clusters on the compute executor. Each searcher is timed as a
+	 * single phase (<code>local</code> and <code>academic</code>), since
+	 * they overlap.
+	 */
+	@Override
+	public CompletionStage<SearchResult> searchAsync(String terms, boolean fetchNumberOfCitations, int count,
+			SearchExecutors executors, PhaseTimer timer) {
+		if (terms == null || terms.isEmpty())
+			return CompletableFuture.completedFuture(null);
+
+		CompletableFuture<List<Document>> local = withDeadline(LOCAL, timer, () -> {
+			try {
+				return papersSearcher.searchDocuments(terms, fetchNumberOfCitations, count, PhaseTimer.DISABLED);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, executors.compute());
+		CompletableFuture<List<Document>> academic = withDeadline(ACADEMIC, timer, () -> {
+			try {
+				return academicSearcher.fetchDocuments(terms, count, deadline);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, executors.io());
+
+		return local.thenCombineAsync(academic, (localDocuments, academicDocuments) -> {
+			if (localDocuments == null && academicDocuments == null)
+				throw new CompletionException(new IllegalStateException("All searchers failed"));
+			List<Document> documents;
+			try (PhaseTimer.Phase phase = timer.start("merge")) {
+				documents = merge(localDocuments, academicDocuments, count);
+			}
+			return documents.isEmpty() ? null : clustering(documents, timer);
+		}, executors.compute());
+	}
+
+	/**
+	 * Runs a search, completing with no documents if it doesn't finish
+	 * before the deadline and with null if it fails.
+	 * <p>The search itself is not interrupted: the local search finishes
+	 * on its own and the Academic requests time out at the deadline,
+	 * releasing their I/O thread.</p>
+	 */
+	private CompletableFuture<List<Document>> withDeadline(String name, PhaseTimer timer,
+			Supplier<List<Document>> search, Executor executor) {
+		CompletableFuture<List<Document>> bounded = new CompletableFuture<>();
+		PhaseTimer.Phase phase = timer.start(name);
+		CompletableFuture<List<Document>> future = CompletableFuture.supplyAsync(search, executor);
+		ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+			if (bounded.complete(Collections.emptyList()))
+				logger.warn("{} search missed the deadline of {}ms", name, deadline);
+		}, deadline, TimeUnit.MILLISECONDS);
+		future.whenComplete((documents, e) -> {
+			timeout.cancel(false);
+			phase.close();
+			if (e != null){
+				if (bounded.complete(null))
+					logger.error(name + " search failed", e);
+			}
+			else
+				bounded.complete(documents != null ? documents : Collections.emptyList());
+		});
+		return bounded;
+	}
+
+	/**
+	 * Merges documents of both searchers: normalizes scores, removes
+	 * duplicates and keeps the best <code>count</code> documents.
+	 */
+	private static List<Document> merge(List<Document> localDocuments, List<Document> academicDocuments, int count) {
+		Map<String, Document> merged = new LinkedHashMap<>();
+		List<Document> documents = new ArrayList<>();
+		add(localDocuments, LOCAL, merged, documents);
+		add(academicDocuments, ACADEMIC, merged, documents);
+		documents.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+		return documents.size() > count ? new ArrayList<>(documents.subList(0, count)) : documents;
+	}
+
+	private static void add(List<Document> documents, String source, Map<String, Document> merged,
+			List<Document> result) {
+		if (documents == null || documents.isEmpty())
+			return;
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for(Document doc : documents){
+			double score = score(doc);
+			min = Math.min(min, score);
+			max = Math.max(max, score);
+		}
+
+		for(Document doc : documents){
+			double score = max > min ? (score(doc) - min) / (max - min) : 1.0;
+			List<String> keys = keys(doc);
+			Document duplicate = null;
+			for(String key : keys){
+				duplicate = merged.get(key);
+				if (duplicate != null)
+					break;
+			}
+
+			if (duplicate != null){
+				mergeInto(duplicate, doc, score, source);
+				for(String key : keys)
+					merged.putIfAbsent(key, duplicate);
+			}
+			else {
+				doc.setScore(score);
+				doc.setField("relevance", score);
+				doc.setField(Document.SOURCES, new ArrayList<>(Arrays.asList(source)));
+				for(String key : keys)
+					merged.putIfAbsent(key, doc);
+				result.add(doc);
+			}
+		}
+	}
+
+	private static void mergeInto(Document target, Document doc, double score, String source) {
+		if (score > target.getScore()){
+			target.setScore(score);
+			target.setField("relevance", score);
+		}
+		List<String> sources = target.getField(Document.SOURCES);
+		if (!sources.contains(source))
+			sources.add(source);
+		for(String field : MERGED_FIELDS)
+			if (target.getField(field) == null && doc.getField(field) != null)
+				target.setField(field, doc.getField(field));
+		Number citations = doc.getField("numCitations");
+		Number targetCitations = target.getField("numCitations");
+		if (citations != null && (targetCitations == null || citations.longValue() > targetCitations.longValue()))
+			target.setField("numCitations", citations.longValue());
+	}
+
+	private static double score(Document doc) {
+		Double score = doc.getScore();
+		return score != null ? score : 0;
+	}
+
+	/**
+	 * Keys identifying a document: its canonical key (DOI when known) and
+	 * its normalized title.
+	 */
+	private static List<String> keys(Document doc) {
+		List<String> keys = new ArrayList<>(2);
+		String key = doc.getField("key");
+		if (key == null)
+			key = Utils.canonicalKey(doc.getField("doi"), doc.getTitle(), doc.getField("authors"),
+					doc.getField("year") != null ? doc.getField("year").toString() : null);
+		if (key != null)
+			keys.add(key);
+		String title = Utils.normalizeText(doc.getTitle());
+		if (!title.isEmpty())
+			keys.add("title:" + title);
+		return keys;
+	}
+
+	private SearchResult clustering(List<Document> documents, PhaseTimer timer) {
+		Map<String,Object> attributes = new HashMap<>();
+		attributes.put(AttributeNames.DOCUMENTS, documents);
+		attributes.put(KMedoidClusteringAlgorithm.NUM_CLUSTERS, numClusters);
+		attributes.put(KMedoidClusteringAlgorithm.DISTANCE_MEASURE, distanceMeasure);
+		attributes.put(KMedoidClusteringAlgorithm.MAX_ITERATIONS, maxIterations);
+		attributes.put(SearchProcessing.NUM_NEIGHBORS, numNeighbors);
+		attributes.put(SearchProcessing.TIMER, timer);
+
+		ProcessingResult results = controller.process(attributes, SearchProcessing.class);
+		return new SearchResult(results);
+	}
+}
@@ -32,10 +32,24 @@ public class MicrosoftAcademicGraphSearcher {
 	}
 	
 	public Map<Long, List<Long>> searchCitations(List<Long> paperIDs) throws Exception{
+		return searchCitations(paperIDs, 0);
+	}
+
+	/**
+	 * Searches citations between papers.
+	 * @param paperIDs ids of the papers
+	 * @param timeout time limit of the request in milliseconds, or 0 for
+	 * no limit
+	 * @return references of each paper or null if there are no papers
+	 * @throws Exception if any error occurs querying the remote service
+	 */
+	public Map<Long, List<Long>> searchCitations(List<Long> paperIDs, long timeout) throws Exception{
 		if (paperIDs == null || paperIDs.size() == 0 )
 			return null;
 
 		final HttpClientBuilder httpBuilder = HttpClientBuilder.create();
+		if (timeout > 0)
+			httpBuilder.setDefaultRequestConfig(MicrosoftAcademicSearcher.requestConfig(timeout));
 
 		try ( CloseableHttpClient httpclient = httpBuilder.build(); ) {
 
@@ -1,15 +1,22 @@
 package services.search;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -28,6 +35,7 @@ import com.typesafe.config.ConfigFactory;
 import services.clustering.DistanceMeasure;
 import services.clustering.EuclideanDistance;
 import services.clustering.KMedoidClusteringAlgorithm;
+import services.clustering.ProcessingListener;
 import services.clustering.SearchProcessing;
 
 public class MicrosoftAcademicSearcher implements DocumentSearcher {
@@ -41,12 +49,21 @@ public class MicrosoftAcademicSearcher implements DocumentSearcher {
 	
 	private final String ocpKey;
 
-	private DistanceMeasure distanceMeasure = new EuclideanDistance();
+	private final DistanceMeasure distanceMeasure;
+
+	/**
+	 * Time limit of remote requests, in milliseconds
+	 */
+	private final long timeout;
 
 	public MicrosoftAcademicSearcher() {
 		this.controller = ControllerFactory.createPooling();
 		Config config = ConfigFactory.load();
 		this.ocpKey = config.getString("Ocp-Apim-Subscription-Key");
+		this.distanceMeasure = config.hasPath("search.clustering.distanceMeasure") ?
+				DistanceMeasure.forName(config.getString("search.clustering.distanceMeasure")) : new EuclideanDistance();
+		this.timeout = config.hasPath("search.academic.timeout") ?
+				config.getDuration("search.academic.timeout", TimeUnit.MILLISECONDS) : 10000L;
 	}
 	
 	public String getExpression(String text){
@@ -57,22 +74,106 @@ public class MicrosoftAcademicSearcher implements DocumentSearcher {
 		return sb.toString();
 	}
 
-	public String search(String query) throws Exception {
+	public SearchResult search(String query) throws Exception {
 		return search(query, 100);
 	}
 	
-	public String search(String query, boolean fetchNumberOfCitations) throws Exception {
+	public SearchResult search(String query, boolean fetchNumberOfCitations) throws Exception {
 		return search(query);
 	}
 
-	public String search(String query, boolean fetchNumberOfCitations, int count) throws Exception {
+	public SearchResult search(String query, boolean fetchNumberOfCitations, int count) throws Exception {
 		return search(query, count);
 	}
-	public String search(String query, int count) throws Exception {
+	public SearchResult search(String query, int count) throws Exception {
+		List<Document> documents = fetchDocuments(query, count);
+		if (documents != null)
+			return clustering(documents);
+		return null;
+	}
+
+	/**
+	 * Runs the remote search (blocking HTTP requests) on the I/O executor 
+	 * and clustering on the compute executor.
+	 */
+	@Override
+	public CompletionStage<SearchResult> searchAsync(String query, boolean fetchNumberOfCitations, int count,
+			SearchExecutors executors) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return fetchDocuments(query, count);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, executors.io()).thenApplyAsync(documents -> {
+			try {
+				return documents != null ? clustering(documents) : null;
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executors.compute());
+	}
+
+	/**
+	 * Sends hits as soon as remote search finishes, then clusters and layout.
+	 */
+	@Override
+	public CompletionStage<SearchResult> searchProgressive(String query, boolean fetchNumberOfCitations, int count,
+			SearchListener listener, SearchExecutors executors) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return fetchDocuments(query, count);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, executors.io()).thenApplyAsync(documents -> {
+			if (documents == null)
+				return null;
+			listener.onHits(new SearchResult(documents, Collections.emptyList()));
+			if (listener.isCancelled())
+				throw new CancellationException("Search cancelled");
+			try {
+				return clustering(documents, listener);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executors.compute());
+	}
+
+	/**
+	 * Searches documents in Microsoft Academic Search and fetches
+	 * their citations from Microsoft Academic Graph, within the
+	 * time limit of remote requests (<code>search.academic.timeout</code>).
+	 * @param query the search query
+	 * @param count maximum number of documents
+	 * @return list of documents or null if nothing was found.
+	 * @throws Exception if any error occurs querying remote services.
+	 */
+	public List<Document> fetchDocuments(String query, int count) throws Exception {
+		return fetchDocuments(query, count, timeout);
+	}
+
+	/**
+	 * Searches documents in Microsoft Academic Search and fetches
+	 * their citations from Microsoft Academic Graph.
+	 * <p>Both requests share the time limit: connecting, waiting for a
+	 * connection and each read time out after the time left, so the
+	 * calling thread is released close to the limit even if the remote
+	 * service stops answering.</p>
+	 * @param query the search query
+	 * @param count maximum number of documents
+	 * @param timeout time limit in milliseconds
+	 * @return list of documents or null if nothing was found.
+	 * @throws Exception if any error occurs querying remote services or
+	 * the time limit is exceeded.
+	 */
+	public List<Document> fetchDocuments(String query, int count, long timeout) throws Exception {
 		if (query == null || query.isEmpty() )
 			return null;
 
-		final HttpClientBuilder httpBuilder = HttpClientBuilder.create();
+		final long end = System.currentTimeMillis() + timeout;
+		final HttpClientBuilder httpBuilder = HttpClientBuilder.create()
+				.setDefaultRequestConfig(requestConfig(timeout));
 
 		try ( CloseableHttpClient httpclient = httpBuilder.build(); ) {
 
@@ -95,9 +196,12 @@ public class MicrosoftAcademicSearcher implements DocumentSearcher {
 				List<Long> paperIDs = new ArrayList<>();
 				List<Document> documents = parseJSON( EntityUtils.toString(entity), paperIDs );
 				
+				long left = end - System.currentTimeMillis();
+				if (left <= 0)
+					throw new SocketTimeoutException("No time left to fetch citations");
 				MicrosoftAcademicGraphSearcher graphSearcher = new MicrosoftAcademicGraphSearcher();
-				Map<Long, List<Long>> citations = graphSearcher.searchCitations(paperIDs);
-				if ( !citations.isEmpty() ){
+				Map<Long, List<Long>> citations = graphSearcher.searchCitations(paperIDs, left);
+				if ( citations != null && !citations.isEmpty() ){
 					for( Document doc : documents ){
 						long id = doc.getField("id");
 						List<Long> references = citations.get(id);
@@ -107,7 +211,7 @@ public class MicrosoftAcademicSearcher implements DocumentSearcher {
 					}
 				}
 				
-				return clustering(documents);
+				return documents;
 				
 			}
 			return null;
@@ -118,6 +222,19 @@ public class MicrosoftAcademicSearcher implements DocumentSearcher {
 		}
 	}
 
+	/**
+	 * @return configuration of requests that time out after <code>timeout</code>
+	 * milliseconds (at least one)
+	 */
+	static RequestConfig requestConfig(long timeout) {
+		int millis = (int) Math.max(1, Math.min(Integer.MAX_VALUE, timeout));
+		return RequestConfig.custom()
+				.setConnectTimeout(millis)
+				.setConnectionRequestTimeout(millis)
+				.setSocketTimeout(millis)
+				.build();
+	}
+
 	public List<Document> parseJSON(String content, List<Long> paperIDs) throws IOException{
 		ObjectMapper mapper = new ObjectMapper();
 		try {
@@ -190,7 +307,11 @@ public class MicrosoftAcademicSearcher implements DocumentSearcher {
 		return null;
 	}
 
-	public String clustering(List<Document> documents) throws IOException{
+	public SearchResult clustering(List<Document> documents) throws IOException{
+		return clustering(documents, null);
+	}
+
+	public SearchResult clustering(List<Document> documents, ProcessingListener listener) throws IOException{
 		
 		Map<String,Object> attributes = new HashMap<>();
 		attributes.put(AttributeNames.DOCUMENTS, documents);
@@ -198,14 +319,11 @@ public class MicrosoftAcademicSearcher implements DocumentSearcher {
 		attributes.put(KMedoidClusteringAlgorithm.DISTANCE_MEASURE, distanceMeasure );
 		attributes.put(KMedoidClusteringAlgorithm.MAX_ITERATIONS, 50);
 		attributes.put(SearchProcessing.NUM_NEIGHBORS, 10);
+		if (listener != null)
+			attributes.put(SearchProcessing.LISTENER, listener);
 
 		ProcessingResult results = controller.process(attributes, SearchProcessing.class);
-
-		// Serialize result as JSON
-		StringWriter writer = new StringWriter();
-		results.serializeJson(writer);
-
-		return writer.toString();
+		return new SearchResult(results);
 	}
 
 	public static void main(String[] args) {
@@ -213,7 +331,9 @@ public class MicrosoftAcademicSearcher implements DocumentSearcher {
 		MicrosoftAcademicSearcher search = new MicrosoftAcademicSearcher();
 
 		try {
-			String json = search.search("jaime teevan");
+			SearchResult result = search.search("jaime teevan");
+			if (result != null)
+				result.writeJson(System.out);
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
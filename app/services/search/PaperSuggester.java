@@ -0,0 +1,280 @@
+package services.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingSuggester;
+import org.apache.lucene.search.suggest.analyzing.FuzzySuggester;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import services.Utils;
+
+/**
+ * Search-as-you-type suggestions built from the papers index: body terms,
+ * titles and authors.
+ * <p>Each kind of suggestion is an FST-based {@link FuzzySuggester}, so
+ * prefixes with a typo still match. Terms are weighted by document frequency
+ * (only terms in at least <code>minDocFreq</code> documents are suggested),
+ * titles by number of citations and authors by number of citations of their
+ * papers.</p>
+ * <p>FSTs can't be updated, so suggesters are rebuilt in background when the
+ * index is refreshed, and swapped when ready; lookups keep using the
+ * previous suggesters meanwhile. Refreshes during a rebuild are coalesced
+ * into a single rebuild, and index versions already built are skipped.</p>
+ *
+ * @author jose
+ */
+public class PaperSuggester {
+
+	private static final Logger logger = LoggerFactory.getLogger(PaperSuggester.class);
+
+	public static final String TERMS = "terms";
+
+	public static final String TITLES = "titles";
+
+	public static final String AUTHORS = "authors";
+
+	private final int minDocFreq;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "paper-suggester");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final AtomicBoolean pending = new AtomicBoolean();
+
+	/**
+	 * Suggester of each kind, by kind
+	 */
+	private volatile Map<String, Lookup> suggesters = Collections.emptyMap();
+
+	private volatile long version = -1;
+
+	/**
+	 * @param minDocFreq minimum document frequency of suggested terms
+	 */
+	public PaperSuggester(int minDocFreq) {
+		this.minDocFreq = minDocFreq;
+	}
+
+	/**
+	 * Suggests completions of a prefix.
+	 * @param prefix the typed prefix
+	 * @param count maximum number of suggestions of each kind
+	 * @return suggestions by kind ({@link #TERMS}, {@link #TITLES}, {@link #AUTHORS}),
+	 * most popular first. Empty before the first build.
+	 */
+	public Map<String, List<String>> suggest(String prefix, int count) {
+		Map<String, List<String>> suggestions = new LinkedHashMap<>();
+		String key = prefix.trim().toLowerCase();
+		for(Map.Entry<String, Lookup> suggester : suggesters.entrySet()){
+			List<String> values = new ArrayList<>(count);
+			if (!key.isEmpty()){
+				try {
+					for(LookupResult result : suggester.getValue().lookup(key, false, count))
+						values.add(result.key.toString());
+				} catch (IOException e) {
+					logger.warn("Can't look up suggestions: " + e.getMessage());
+				}
+			}
+			suggestions.put(suggester.getKey(), values);
+		}
+		return suggestions;
+	}
+
+	/**
+	 * Rebuilds suggesters in background from the current searcher, unless
+	 * a rebuild is already waiting.
+	 * @param manager the searcher manager
+	 */
+	public void rebuild(ReferenceManager<IndexSearcher> manager) {
+		if (!pending.compareAndSet(false, true))
+			return;
+		executor.execute(() -> {
+			pending.set(false);
+			try {
+				IndexSearcher isearch = manager.acquire();
+				try {
+					build(isearch.getIndexReader());
+				} finally {
+					manager.release(isearch);
+				}
+			} catch (Exception e) {
+				logger.error("Can't build suggesters", e);
+			}
+		});
+	}
+
+	/**
+	 * Builds suggesters from an index reader, if it is not the version
+	 * already built.
+	 * @param reader the index reader
+	 * @throws IOException if the index can't be read
+	 */
+	public synchronized void build(IndexReader reader) throws IOException {
+		long readerVersion = reader instanceof DirectoryReader ? ((DirectoryReader) reader).getVersion() : -1;
+		if (readerVersion >= 0 && readerVersion == version)
+			return;
+		long start = System.nanoTime();
+
+		Map<String, Long> terms = new HashMap<>();
+		Terms bodyTerms = MultiFields.getTerms(reader, "body");
+		if (bodyTerms != null){
+			TermsEnum termsEnum = bodyTerms.iterator();
+			BytesRef term;
+			while ((term = termsEnum.next()) != null){
+				if (termsEnum.docFreq() >= minDocFreq && term.length > 2){
+					String text = term.utf8ToString();
+					if (!Character.isDigit(text.charAt(0)))
+						terms.put(text, (long) termsEnum.docFreq());
+				}
+			}
+		}
+
+		Map<String, Long> titles = new HashMap<>();
+		Map<String, Long> authors = new HashMap<>();
+		for(LeafReaderContext leaf : reader.leaves())
+			readPapers(leaf.reader(), titles, authors);
+
+		Map<String, Lookup> built = new LinkedHashMap<>();
+		built.put(TERMS, newSuggester(terms));
+		built.put(TITLES, newSuggester(titles));
+		built.put(AUTHORS, newSuggester(authors));
+		suggesters = built;
+		version = readerVersion;
+		logger.info("Suggesters built in {}ms: {} terms, {} titles, {} authors", (System.nanoTime() - start) / 1000000,
+				terms.size(), titles.size(), authors.size());
+	}
+
+	/**
+	 * Reads titles and authors of a segment, from display doc values if
+	 * present or from stored fields. Weights are number of citations plus one.
+	 */
+	private static void readPapers(LeafReader reader, Map<String, Long> titles, Map<String, Long> authors)
+			throws IOException {
+		BinaryDocValues titleValues = reader.getBinaryDocValues("title");
+		BinaryDocValues authorsValues = reader.getBinaryDocValues("authors");
+		NumericDocValues ranks = DocValues.getNumeric(reader, StaticRankCollector.FIELD);
+		Bits liveDocs = reader.getLiveDocs();
+		Set<String> fields = new HashSet<>(Arrays.asList("title", "authors"));
+		for(int doc = 0; doc < reader.maxDoc(); doc++){
+			if (liveDocs != null && !liveDocs.get(doc))
+				continue;
+			String title, authorsList;
+			if (titleValues != null){
+				title = titleValues.get(doc).utf8ToString();
+				authorsList = authorsValues != null ? authorsValues.get(doc).utf8ToString() : null;
+			}
+			else {
+				Document stored = reader.document(doc, fields);
+				title = stored.get("title");
+				authorsList = stored.get("authors");
+			}
+			long weight = Math.max(1L, ranks.get(doc));
+			if (title != null && !title.isEmpty())
+				titles.merge(title, weight, Math::max);
+			if (authorsList != null){
+				for(String author : authorsList.split(Utils.AUTHOR_SEPARATOR)){
+					author = author.trim();
+					if (!author.isEmpty())
+						authors.merge(author, weight, Long::sum);
+				}
+			}
+		}
+	}
+
+	private static Lookup newSuggester(Map<String, Long> entries) throws IOException {
+		Analyzer analyzer = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+		AnalyzingSuggester suggester = new FuzzySuggester(new RAMDirectory(), "suggest", analyzer);
+		suggester.build(new MapInputIterator(entries));
+		return suggester;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Iterates over suggestions and their weights.
+	 */
+	private static final class MapInputIterator implements InputIterator {
+
+		private final Iterator<Map.Entry<String, Long>> entries;
+
+		private long weight;
+
+		MapInputIterator(Map<String, Long> entries) {
+			this.entries = entries.entrySet().iterator();
+		}
+
+		@Override
+		public BytesRef next() {
+			if (!entries.hasNext())
+				return null;
+			Map.Entry<String, Long> entry = entries.next();
+			weight = entry.getValue();
+			return new BytesRef(entry.getKey());
+		}
+
+		@Override
+		public long weight() {
+			return weight;
+		}
+
+		@Override
+		public BytesRef payload() {
+			return null;
+		}
+
+		@Override
+		public boolean hasPayloads() {
+			return false;
+		}
+
+		@Override
+		public Set<BytesRef> contexts() {
+			return null;
+		}
+
+		@Override
+		public boolean hasContexts() {
+			return false;
+		}
+	}
+}
@@ -1,51 +1,109 @@
 package services.search;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.BoostedQuery;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.MultiCollector;
 import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherLifetimeManager;
 import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.carrot2.core.Controller;
 import org.carrot2.core.ControllerFactory;
 import org.carrot2.core.ProcessingResult;
 import org.carrot2.core.attribute.AttributeNames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import play.Configuration;
-import services.CitationSimilarity;
+import play.inject.ApplicationLifecycle;
 import services.DatabaseHelper;
+import services.PhaseTimer;
+import services.References;
 import services.clustering.DistanceMeasure;
 import services.clustering.EuclideanDistance;
+import services.clustering.IncrementalLayout;
 import services.clustering.KMedoidClusteringAlgorithm;
 import services.clustering.SearchProcessing;
 
 @Singleton
-public class PapersIndexSearcher implements DocumentSearcher {
+public class PapersIndexSearcher implements DocumentSearcher, Closeable {
 
+	private static final Logger logger = LoggerFactory.getLogger(PapersIndexSearcher.class);
 
-	private SearcherManager  mgr;
+	private final SearcherManager mgr;
+
+	/**
+	 * Reopens searchers in background
+	 */
+	private final SearcherRefresher refresher;
+
+	/**
+	 * Queries run on new searchers before they are published
+	 */
+	private final List<String> warmQueries;
+
+	/**
+	 * Bitsets of facet filters (and other frequent queries), shared by
+	 * all searchers
+	 */
+	private final LRUQueryCache queryCache;
+
+	private final FacetFilterCachingPolicy cachingPolicy = new FacetFilterCachingPolicy();
+
+	/**
+	 * Number of values of each facet
+	 */
+	private final int facetSize;
 
 	private final Directory directory;
 
@@ -53,70 +111,595 @@ public class PapersIndexSearcher implements DocumentSearcher {
 	
 	private int numClusters = 2;
 
-	private DistanceMeasure distanceMeasure = new EuclideanDistance();
+	private final DistanceMeasure distanceMeasure;
+
+	private int maxIterations = 50;
+
+	private int numNeighbors = 3;
+
+	/**
+	 * Number of hits from which distances are stored off heap
+	 */
+	private final int mappedDistancesThreshold;
+
+	/**
+	 * Cache of search results, invalidated when the index is reopened.
+	 */
+	private final ResultCache<SearchKey, SearchResult> resultCache;
+
+	/**
+	 * Searches in progress: identical concurrent searches share the same result.
+	 */
+	private final SingleFlight<SearchKey, SearchResult> inFlight = new SingleFlight<>();
+
+	/**
+	 * Keeps searchers used by first pages of paginated searches, so next pages
+	 * are searched in the same index version.
+	 */
+	private final SearcherLifetimeManager searchers = new SearcherLifetimeManager();
+
+	/**
+	 * State needed to continue first pages of paginated searches (cached
+	 * results included).
+	 */
+	private final Map<SearchResult, FirstPage> firstPages = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Cursors to next pages.
+	 */
+	private final ResultCache<String, PageCursor> cursors;
+
+	private final double cursorMaxAge;
+
+	/**
+	 * Maximum number of documents of a page
+	 */
+	private final int maxPageSize;
+
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Early termination in segments sorted by static rank
+	 */
+	private final boolean earlyTermination;
+
+	private final int minLeafHitsFactor;
+
+	private final float earlyTerminationSlack;
+
+	/**
+	 * Citation boost, applied once per document
+	 */
+	private final CitationBoost citationBoost;
+
+	/**
+	 * Background check of index citation counts against the graph
+	 */
+	private final CitationFreshness citationFreshness;
+
+	/**
+	 * Display fields by segment, or null to always read stored fields
+	 */
+	private final SegmentMetadataCache metadataCache;
+
+	/**
+	 * Segments without facet doc values in the last searcher warmed, 
+	 * logged when it changes
+	 */
+	private int segmentsWithoutFacets;
+
+	/**
+	 * Search-as-you-type suggestions, rebuilt when the index is refreshed
+	 */
+	private final PaperSuggester suggester;
+
+	/**
+	 * Stored fields read when display fields are not cached
+	 */
+	private static final Set<String> DISPLAY_FIELDS = new HashSet<>(Arrays.asList(
+			"file", "title", "authors", "keyword", "key", "doi", "year", References.FIELD));
 
+	private static final class FirstPage {
+		final long version;
+		final ScoreDoc last;
+		final IncrementalLayout layout;
+
+		FirstPage(long version, ScoreDoc last, IncrementalLayout layout) {
+			this.version = version;
+			this.last = last;
+			this.layout = layout;
+		}
+	}
+
+	private static final class PageCursor {
+		final List<String> terms;
+		final boolean fetchNumberOfCitations;
+		final long version;
+		final ScoreDoc after;
+		final IncrementalLayout layout;
+		final int nextDocumentId;
+
+		PageCursor(List<String> terms, boolean fetchNumberOfCitations, long version, ScoreDoc after,
+				IncrementalLayout layout, int nextDocumentId) {
+			this.terms = terms;
+			this.fetchNumberOfCitations = fetchNumberOfCitations;
+			this.version = version;
+			this.after = after;
+			this.layout = layout;
+			this.nextDocumentId = nextDocumentId;
+		}
+	}
+
+	/**
+	 * Creates a searcher bound to the application lifecycle: it is
+	 * closed when the application stops.
+	 */
 	@Inject
+	public PapersIndexSearcher(Configuration configuration, ApplicationLifecycle lifecycle) throws IOException {
+		this(configuration);
+		lifecycle.addStopHook(() -> {
+			close();
+			return CompletableFuture.completedFuture(null);
+		});
+	}
+
+	/**
+	 * Creates a searcher outside an application (e.g. command line
+	 * tools). It must be closed by the caller.
+	 * @param configuration the configuration
+	 * @throws IOException if the index can't be opened
+	 */
 	public PapersIndexSearcher(Configuration configuration) throws IOException {
 		String indexDir = configuration.getString("luceneIndexDir", "db");
 		directory = NIOFSDirectory.open(new File(indexDir).toPath());
 		controller = ControllerFactory.createPooling();
-	}
+		long cacheSize = configuration.getBytes("search.cache.maxSize", 64L * 1024 * 1024);
+		// First pages of paginated searches keep their layout while cached
+		resultCache = new ResultCache<>(cacheSize, r -> {
+			FirstPage first = firstPages.get(r);
+			return r.getJsonSize() + (first != null && first.layout != null ? first.layout.estimateSize() : 0);
+		});
+		// Cursors share layouts, so weighing each cursor with its layout overestimates
+		long cursorsSize = configuration.getBytes("search.pagination.maxSize", 32L * 1024 * 1024);
+		cursors = new ResultCache<>(cursorsSize, c -> 256 + c.layout.estimateSize());
+		cursorMaxAge = configuration.getMilliseconds("search.pagination.maxAge", 600000L) / 1000.0;
+		maxPageSize = configuration.getInt("search.pagination.maxCount", 500);
+		earlyTermination = configuration.getBoolean("search.staticRank.earlyTermination", true);
+		minLeafHitsFactor = configuration.getInt("search.staticRank.minLeafHitsFactor", 2);
+		earlyTerminationSlack = configuration.getDouble("search.staticRank.slack", 1.5).floatValue();
+		citationBoost = new CitationBoost(
+				CitationBoost.dampening(configuration.getString("search.citationBoost.dampening", "log")),
+				configuration.getDouble("search.citationBoost.k", 10.0),
+				configuration.getDouble("search.citationBoost.weight", 1.0));
+		if (configuration.getBoolean("search.citations.freshness.enabled", true))
+			citationFreshness = new CitationFreshness(
+					configuration.getInt("search.citations.freshness.queueSize", 16),
+					configuration.getInt("search.citations.freshness.maxEntries", 100000),
+					configuration.getMilliseconds("search.citations.freshness.maxAge", 3600000L));
+		else
+			citationFreshness = null;
+		metadataCache = configuration.getBoolean("search.displayCache.enabled", true) ? 
+				new SegmentMetadataCache(configuration.getBytes("search.displayCache.maxSize", 64L * 1024 * 1024)) : null;
+		suggester = new PaperSuggester(configuration.getInt("search.suggest.minDocFreq", 3));
+		warmQueries = configuration.getStringList("search.refresh.warmQueries", Collections.emptyList());
+		queryCache = new LRUQueryCache(configuration.getInt("search.filterCache.maxQueries", 256),
+				configuration.getBytes("search.filterCache.maxSize", 32L * 1024 * 1024));
+		facetSize = configuration.getInt("search.facets.size", 10);
+		mappedDistancesThreshold = configuration.getInt("search.clustering.mappedDistancesThreshold", 10000);
+		distanceMeasure = DistanceMeasure.forName(configuration.getString("search.clustering.distanceMeasure",
+				EuclideanDistance.class.getName()));
 
-	public SearcherManager getSearcherManager(){
-		if (mgr == null){
-			try {
-				this.mgr = new SearcherManager(directory, new SearcherFactory() {
-					@Override
-					public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
-						IndexSearcher isearch = new IndexSearcher(reader);
-						isearch.setSimilarity(new CitationSimilarity(IndexSearcher.getDefaultSimilarity()));
-						return isearch;
-					}
-				});
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		if (!DirectoryReader.indexExists(directory)){
+			logger.warn("No index found in {}, creating an empty one", indexDir);
+			try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+				writer.commit();
+			}
+		}
+		mgr = new SearcherManager(directory, new SearcherFactory() {
+			@Override
+			public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+				IndexSearcher isearch = new IndexSearcher(reader);
+				isearch.setQueryCache(queryCache);
+				isearch.setQueryCachingPolicy(cachingPolicy);
+				warm(isearch);
+				return isearch;
+			}
+		});
+		mgr.addListener(new ReferenceManager.RefreshListener() {
+			@Override
+			public void beforeRefresh() throws IOException {
+			}
+
+			@Override
+			public void afterRefresh(boolean didRefresh) throws IOException {
+				if (didRefresh){
+					resultCache.invalidateAll();
+					suggester.rebuild(mgr);
+				}
 			}
+		});
+		suggester.rebuild(mgr);
+		refresher = new SearcherRefresher(mgr,
+				configuration.getMilliseconds("search.refresh.minStaleness", 1000L),
+				configuration.getMilliseconds("search.refresh.maxStaleness", 60000L));
+	}
+
+	/**
+	 * Warms a new searcher before it is published: loads doc values used
+	 * by searches and display fields of new segments (as long as they fit in
+	 * the display cache), checks segments have facet doc values and runs 
+	 * the warming queries.
+	 */
+	private void warm(IndexSearcher isearch) throws IOException {
+		long start = System.nanoTime();
+		int withoutFacets = 0;
+		for(LeafReaderContext leaf : isearch.getIndexReader().leaves()){
+			DocValues.getNumeric(leaf.reader(), StaticRankCollector.FIELD);
+			if (metadataCache != null)
+				metadataCache.get(leaf.reader());
+			if (!FacetCollector.hasFacetDocValues(leaf.reader()))
+				withoutFacets++;
+		}
+		if (withoutFacets != segmentsWithoutFacets){
+			segmentsWithoutFacets = withoutFacets;
+			if (withoutFacets > 0)
+				logger.warn("{} index segments have no facet doc values: their documents are not counted "
+						+ "in facets until the index is rebuilt", withoutFacets);
 		}
+		for(String q : warmQueries)
+			isearch.search(buildQuery(getListOfTerms(q)), 10);
+		logger.debug("Searcher warmed in {}ms", (System.nanoTime() - start) / 1000000);
+	}
+
+	public SearcherManager getSearcherManager(){
 		return mgr;
 	}
+
+	/**
+	 * Asks for searchers to be reopened because the index has changed.
+	 * New searchers are published in background, within
+	 * <code>search.refresh.minStaleness</code>.
+	 */
+	public void requestRefresh() {
+		refresher.requestRefresh();
+	}
 	
-	public String search(String term) throws Exception {
+	public SearchResult search(String term) throws Exception {
 		return search(term, false, 100);
 	}
 
-	public String search(String term, int count) throws Exception{
-		return search(term, false, 100);
+	public SearchResult search(String term, int count) throws Exception{
+		return search(term, false, count);
 	}
 	
-	public String search(String term, boolean fetchNumberOfCitations) throws Exception{
+	public SearchResult search(String term, boolean fetchNumberOfCitations) throws Exception{
 		return search(term,fetchNumberOfCitations, 100);
 	}
 	
-	public String search(String term, boolean fetchNumberOfCitations, int count) throws Exception{
+	public SearchResult search(String term, boolean fetchNumberOfCitations, int count) throws Exception{
+		try {
+			return search(term, Collections.emptyMap(), false, fetchNumberOfCitations, count, false, Runnable::run, 
+					PhaseTimer.DISABLED).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	@Override
+	public CompletionStage<SearchResult> searchAsync(String term, boolean fetchNumberOfCitations, int count,
+			SearchExecutors executors) {
+		return searchAsync(term, fetchNumberOfCitations, count, executors, PhaseTimer.DISABLED);
+	}
+
+	@Override
+	public CompletionStage<SearchResult> searchAsync(String term, boolean fetchNumberOfCitations, int count,
+			SearchExecutors executors, PhaseTimer timer) {
+		return search(term, Collections.emptyMap(), false, fetchNumberOfCitations, count, false, executors.compute(), 
+				timer);
+	}
+
+	/**
+	 * Searches asynchronously, drilling down by facet values and counting
+	 * hits by facet value.
+	 * <p>Filters don't change scores. Values of the same field are alternatives
+	 * and fields are all required; filters are cached as bitsets (see
+	 * {@link FacetFilterCachingPolicy}). Counting facets needs every hit, so
+	 * searches with facets are not terminated early by static rank: when
+	 * <code>search.staticRank.earlyTermination</code> is enabled, their hits
+	 * are the exact top hits while hits of searches without facets are an
+	 * approximation (see {@link StaticRankCollector}).</p>
+	 * <p>Segments indexed before facets were added have no facet doc values
+	 * and their hits are not counted; a warning is logged when a searcher
+	 * has such segments, until the index is rebuilt.</p>
+	 * @param term the search terms
+	 * @param filters values of each facet field the documents must have
+	 * @param facets whether to count hits by facet value (see {@link SearchResult#getFacets()})
+	 * @param fetchNumberOfCitations whether to fetch number of citations
+	 * @param count maximum number of documents
+	 * @param executors search executors
+	 * @param timer the request timer
+	 * @return the search result
+	 */
+	public CompletionStage<SearchResult> searchAsync(String term, Map<String, List<String>> filters, boolean facets,
+			boolean fetchNumberOfCitations, int count, SearchExecutors executors, PhaseTimer timer) {
+		for(String field : filters.keySet())
+			if (!FacetCollector.FIELDS.contains(field))
+				return failed(new IllegalArgumentException("Unknown facet: " + field));
+		return search(term, filters, facets, fetchNumberOfCitations, count, false, executors.compute(), timer);
+	}
+
+	/**
+	 * Returns a cached result or attaches to an identical search in 
+	 * progress. Otherwise a new search is started in the given executor.
+	 * Phases are timed only for new searches: a search attached to another
+	 * one in progress has no phases.
+	 * <p>The searcher is acquired once: the key has the version of the
+	 * searcher used by the search, so results of a searcher opened by
+	 * a concurrent refresh are never cached with an older version.</p>
+	 * <p>Only first pages of paginated searches (<code>paged</code>) keep 
+	 * their searcher and layout for next pages.</p>
+	 */
+	private CompletableFuture<SearchResult> search(String term, Map<String, List<String>> filters, boolean facets,
+			boolean fetchNumberOfCitations, int count, boolean paged, Executor executor, PhaseTimer timer) {
 		if (term == null || term.isEmpty())
-			return null;
+			return CompletableFuture.completedFuture(null);
 
 		List<String> terms = getListOfTerms(term);
-		ScoreDoc[] hits = null;
-		Query query;
+		IndexSearcher isearch;
+		try {
+			isearch = getSearcherManager().acquire();
+		} catch (IOException e) {
+			return failed(e);
+		}
+		SearchKey key = newSearchKey(isearch, terms, filters, facets, fetchNumberOfCitations, count, paged);
+
+		SearchResult cached;
+		try (PhaseTimer.Phase phase = timer.start("cache")) {
+			cached = resultCache.get(key);
+		}
+		if (cached != null){
+			release(isearch);
+			return CompletableFuture.completedFuture(cached);
+		}
+
+		boolean[] started = new boolean[1];
+		try {
+			CompletableFuture<SearchResult> result = inFlight.execute(key, () -> {
+				started[0] = true;
+				return CompletableFuture.supplyAsync(() -> {
+					try {
+						return doSearchAndCache(isearch, key, terms, filters, facets, fetchNumberOfCitations, 
+								count, paged, null, timer);
+					} finally {
+						release(isearch);
+					}
+				}, executor);
+			});
+			// Attached to a search in progress
+			if (!started[0])
+				release(isearch);
+			return result;
+		} catch (RuntimeException e) {
+			release(isearch);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends hits as soon as Lucene search finishes, then clusters and layout. 
+	 * Progressive searches are not coalesced, since each one has its own listener,
+	 * but cached results are reused and replayed.
+	 */
+	@Override
+	public CompletionStage<SearchResult> searchProgressive(String term, boolean fetchNumberOfCitations, int count,
+			SearchListener listener, SearchExecutors executors) {
+		if (term == null || term.isEmpty())
+			return CompletableFuture.completedFuture(null);
+
+		List<String> terms = getListOfTerms(term);
+		IndexSearcher isearch;
+		try {
+			isearch = getSearcherManager().acquire();
+		} catch (IOException e) {
+			return failed(e);
+		}
+		SearchKey key = newSearchKey(isearch, terms, Collections.emptyMap(), false, fetchNumberOfCitations, count, 
+				false);
+
+		SearchResult cached = resultCache.get(key);
+		if (cached != null){
+			release(isearch);
+			cached.replay(listener);
+			return CompletableFuture.completedFuture(cached);
+		}
+
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					return doSearchAndCache(isearch, key, terms, Collections.emptyMap(), false, fetchNumberOfCitations, 
+							count, false, listener, PhaseTimer.DISABLED);
+				} finally {
+					release(isearch);
+				}
+			}, executors.compute());
+		} catch (RuntimeException e) {
+			release(isearch);
+			throw e;
+		}
+	}
+
+	/**
+	 * Searches a page of results. Without a cursor the first page is searched
+	 * and clustered; with a cursor the next page is searched after the last 
+	 * hit of the previous one, in the same index version, and placed into
+	 * the first page clusters and layout.
+	 * @param term the search term, used for the first page
+	 * @param cursor cursor returned with the previous page or null for the first page
+	 * @param count number of documents of the page, at most 
+	 * <code>search.pagination.maxCount</code>
+	 * @param executors search executors
+	 * @return the page, or null if no documents were found. It completes with
+	 * {@link NoSuchElementException} if the cursor is unknown or expired.
+	 * @throws IllegalArgumentException if count is less than one
+	 */
+	public CompletionStage<SearchPage> searchPage(String term, String cursor, int count, SearchExecutors executors) {
+		if (count < 1)
+			throw new IllegalArgumentException("Count must be at least 1");
+		final int pageSize = Math.min(count, maxPageSize);
+		if (cursor == null){
+			List<String> terms = term != null ? getListOfTerms(term) : Collections.emptyList();
+			return search(term, Collections.emptyMap(), false, false, pageSize, true, executors.compute(), 
+					PhaseTimer.DISABLED).thenApply(result -> {
+				if (result == null)
+					return null;
+				FirstPage first = firstPages.get(result);
+				String next = null;
+				if (first != null && first.last != null && first.layout != null)
+					next = newCursor(new PageCursor(terms, false, first.version, first.last, 
+							first.layout, result.getDocuments().size()));
+				return new SearchPage(result, next);
+			});
+		}
 
-		if (terms.size() > 1){
+		PageCursor pageCursor = cursors.get(cursor);
+		if (pageCursor == null){
+			CompletableFuture<SearchPage> failed = new CompletableFuture<>();
+			failed.completeExceptionally(new NoSuchElementException("Unknown or expired cursor"));
+			return failed;
+		}
+		return CompletableFuture.supplyAsync(() -> {
 			try {
-				query = buildBooleanQuery(terms);
+				return nextPage(pageCursor, pageSize);
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				return null;
+				throw new CompletionException(e);
 			}
+		}, executors.compute());
+	}
+
+	private SearchPage nextPage(PageCursor cursor, int count) throws IOException {
+		IndexSearcher isearch = acquireSearcher(cursor.version);
+		if (isearch == null)
+			throw new NoSuchElementException("Unknown or expired cursor");
+
+		ScoreDoc[] hits;
+		List<org.carrot2.core.Document> documents;
+		try {
+			hits = isearch.searchAfter(cursor.after, buildQuery(cursor.terms), count).scoreDocs;
+			documents = prepareDocumentsForClustering(isearch, hits, cursor.fetchNumberOfCitations, 
+					false, PhaseTimer.DISABLED);
+		} finally {
+			searchers.release(isearch);
 		}
-		else {
-			query = buildSimpleQuery(terms);
+
+		String next = null;
+		if (hits.length == count)
+			next = newCursor(new PageCursor(cursor.terms, cursor.fetchNumberOfCitations, cursor.version,
+					hits[hits.length - 1], cursor.layout, cursor.nextDocumentId + hits.length));
+		return new SearchPage(documents, cursor.nextDocumentId, cursor.layout.place(documents), 
+				cursor.layout.getClusters(), next);
+	}
+
+	private String newCursor(PageCursor cursor) {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		cursors.put(token, cursor);
+		return token;
+	}
+
+	/**
+	 * Acquires the searcher of an index version. Searchers are recorded by
+	 * first pages and pruned after some time; if the version is still the current 
+	 * one it is recorded again.
+	 * @return the searcher or null if the version is no longer available
+	 */
+	private IndexSearcher acquireSearcher(long version) throws IOException {
+		IndexSearcher isearch = searchers.acquire(version);
+		if (isearch == null){
+			IndexSearcher current = getSearcherManager().acquire();
+			try {
+				if (((DirectoryReader) current.getIndexReader()).getVersion() == version){
+					searchers.record(current);
+					isearch = searchers.acquire(version);
+				}
+			} finally {
+				getSearcherManager().release(current);
+			}
 		}
+		return isearch;
+	}
 
-		IndexSearcher isearch = getSearcherManager().acquire();
+	private SearchResult doSearchAndCache(IndexSearcher isearch, SearchKey key, List<String> terms, 
+			Map<String, List<String>> filters, boolean facets, boolean fetchNumberOfCitations, int count, 
+			boolean paged, SearchListener listener, PhaseTimer timer) {
 		try {
-			hits = isearch.search(query,count).scoreDocs;
+			SearchResult result = doSearch(isearch, terms, filters, facets, fetchNumberOfCitations, count, 
+					paged, listener, timer);
+			if (result != null)
+				resultCache.put(key, result);
+			return result;
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private void release(IndexSearcher isearch) {
+		try {
+			getSearcherManager().release(isearch);
+		} catch (IOException e) {
+			logger.error("Can't release searcher", e);
+		}
+	}
+
+	private static CompletableFuture<SearchResult> failed(Throwable e) {
+		CompletableFuture<SearchResult> failed = new CompletableFuture<>();
+		failed.completeExceptionally(e);
+		return failed;
+	}
+
+	/**
+	 * Creates the key identifying a search. Index version of the searcher
+	 * is part of the key, so results computed with an older reader are never
+	 * returned after a refresh. Filters are part of the key in a canonical order.
+	 */
+	private SearchKey newSearchKey(IndexSearcher isearch, List<String> terms, Map<String, List<String>> filters, 
+			boolean facets, boolean fetchNumberOfCitations, int count, boolean paged) {
+		Map<String, Set<String>> sortedFilters = new TreeMap<>();
+		for(Map.Entry<String, List<String>> filter : filters.entrySet())
+			if (!filter.getValue().isEmpty())
+				sortedFilters.put(filter.getKey(), new TreeSet<>(filter.getValue()));
+		return new SearchKey(terms, sortedFilters.toString(), facets, count, paged, fetchNumberOfCitations, numClusters,
+				distanceMeasure.getClass().getName(), maxIterations, numNeighbors,
+				((DirectoryReader) isearch.getIndexReader()).getVersion());
+	}
+
+	/**
+	 * Searches and clusters with the given searcher, which is released 
+	 * by the caller. First pages of paginated searches also build the
+	 * layout for next pages and keep the searcher.
+	 */
+	private SearchResult doSearch(IndexSearcher isearch, List<String> terms, Map<String, List<String>> filters, 
+			boolean facets, boolean fetchNumberOfCitations, int count, boolean paged, SearchListener listener, 
+			PhaseTimer timer) throws Exception{
+		ScoreDoc[] hits = null;
+		Map<String, Map<String, Integer>> facetCounts = null;
+		Query query;
+		try {
+			query = buildQuery(terms, filters);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+			return null;
+		}
+
+		try (PhaseTimer.Phase phase = timer.start("lucene")) {
+			// Next pages continue after the last hit, so it must be exact
+			FacetCollector facetCollector = facets ? new FacetCollector() : null;
+			hits = searchHits(isearch, query, count, paged, facetCollector);
+			if (facetCollector != null)
+				facetCounts = facetCollector.getFacets(facetSize);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -124,67 +707,241 @@ public class PapersIndexSearcher implements DocumentSearcher {
 
 
 		if (hits != null){
+			// Keep searcher for next pages
+			long version = 0;
+			ScoreDoc last = null;
+			if (paged){
+				version = searchers.record(isearch);
+				searchers.prune(new SearcherLifetimeManager.PruneByAge(cursorMaxAge));
+				last = hits.length == count ? hits[hits.length - 1] : null;
+			}
+
 			// Preparing for clustering
-			List<org.carrot2.core.Document> docsForClustering = prepareDocumentsForClustering(isearch, hits, fetchNumberOfCitations);
+			List<org.carrot2.core.Document> docsForClustering = prepareDocumentsForClustering(isearch, hits, 
+					fetchNumberOfCitations, false, timer);
 
-			//Release Index Searcher
-			getSearcherManager().release(isearch);
+			if (listener != null){
+				listener.onHits(new SearchResult(docsForClustering, Collections.emptyList()));
+				if (listener.isCancelled())
+					throw new CancellationException("Search cancelled");
+			}
 
 			//Now perform clustering
 			Map<String,Object> attributes = new HashMap<>();
 			attributes.put(AttributeNames.DOCUMENTS, docsForClustering);
 			attributes.put(KMedoidClusteringAlgorithm.NUM_CLUSTERS, numClusters);
 			attributes.put(KMedoidClusteringAlgorithm.DISTANCE_MEASURE, distanceMeasure );
-			attributes.put(KMedoidClusteringAlgorithm.MAX_ITERATIONS, 50);
-			attributes.put(SearchProcessing.NUM_NEIGHBORS, 3);
+			attributes.put(KMedoidClusteringAlgorithm.MAX_ITERATIONS, maxIterations);
+			attributes.put(SearchProcessing.NUM_NEIGHBORS, numNeighbors);
+			attributes.put(SearchProcessing.MAPPED_DISTANCES_THRESHOLD, mappedDistancesThreshold);
+			attributes.put(SearchProcessing.BUILD_LAYOUT, paged);
+			if (listener != null)
+				attributes.put(SearchProcessing.LISTENER, listener);
+			attributes.put(SearchProcessing.TIMER, timer);
 			
 			ProcessingResult results = controller.process(attributes, SearchProcessing.class);
-			
-			// Serialize result as JSON
-			StringWriter writer = new StringWriter();
-			results.serializeJson(writer);
-
-			return writer.toString();
+			SearchResult result = new SearchResult(results);
+			if (facetCounts != null)
+				result.setFacets(facetCounts);
+			if (paged)
+				firstPages.put(result, new FirstPage(version, last, results.getAttribute(SearchProcessing.LAYOUT)));
+			return result;
 		}
 
-		getSearcherManager().release(isearch);
 		return null;
 	}
 
+	/**
+	 * Searches top hits, the same way for every search: with early termination
+	 * by static rank if enabled, unless hits must be exact or facets counted
+	 * (Lucene's MultiCollector stops every collector of a segment when one
+	 * terminates early).
+	 * @param exact whether hits must be the exhaustive top hits
+	 * @param facets counts hits by facet value in the same pass, or null
+	 */
+	private ScoreDoc[] searchHits(IndexSearcher isearch, Query query, int count, boolean exact, 
+			FacetCollector facets) throws IOException {
+		if (earlyTermination && !exact && facets == null){
+			StaticRankCollector collector = new StaticRankCollector(count, minLeafHitsFactor * count, 
+					earlyTerminationSlack, citationBoost::boost);
+			isearch.search(query, collector);
+			return collector.topDocs();
+		}
+		TopScoreDocCollector topDocs = TopScoreDocCollector.create(count);
+		isearch.search(query, facets != null ? MultiCollector.wrap(topDocs, facets) : topDocs);
+		return topDocs.topDocs().scoreDocs;
+	}
+
+	/**
+	 * Searches documents without clustering them, e.g. to merge them with
+	 * documents of other searchers. Documents have a <code>key</code> field
+	 * with their canonical key.
+	 * @param term the search term
+	 * @param fetchNumberOfCitations whether to set number of citations
+	 * @param count maximum number of documents
+	 * @param timer the request timer
+	 * @return the documents, most relevant first
+	 * @throws IOException if the index can't be searched
+	 */
+	public List<org.carrot2.core.Document> searchDocuments(String term, boolean fetchNumberOfCitations, int count,
+			PhaseTimer timer) throws IOException {
+		if (term == null || term.isEmpty())
+			return Collections.emptyList();
+		Query query = buildQuery(getListOfTerms(term));
+		IndexSearcher isearch = getSearcherManager().acquire();
+		try {
+			ScoreDoc[] hits;
+			try (PhaseTimer.Phase phase = timer.start("lucene")) {
+				hits = searchHits(isearch, query, count, false, null);
+			}
+			return prepareDocumentsForClustering(isearch, hits, fetchNumberOfCitations, true, timer);
+		} finally {
+			getSearcherManager().release(isearch);
+		}
+	}
+
+	/**
+	 * Suggests completions of a search term: body terms, titles and authors.
+	 * Suggestions are empty until suggesters are first built.
+	 * @param prefix the typed prefix
+	 * @param count maximum number of suggestions of each kind
+	 * @return suggestions by kind
+	 */
+	public Map<String, List<String>> suggest(String prefix, int count) {
+		return suggester.suggest(prefix, count);
+	}
+
+	/**
+	 * @return search statistics: result cache hits, misses and evictions,
+	 * searches executed or coalesced with an identical search in progress
+	 * and filter cache hits, misses and size.
+	 */
+	public Map<String, Long> getStatistics() {
+		Map<String, Long> stats = new HashMap<>(resultCache.getStatistics());
+		stats.put("executions", inFlight.getExecutions());
+		stats.put("coalesced", inFlight.getCoalesced());
+		stats.put("filterCacheHits", queryCache.getHitCount());
+		stats.put("filterCacheMisses", queryCache.getMissCount());
+		stats.put("filterCacheBytes", queryCache.ramBytesUsed());
+		return stats;
+	}
+
+	/**
+	 * @return the search results cache
+	 */
+	public ResultCache<SearchKey, SearchResult> getResultCache() {
+		return resultCache;
+	}
+
 
 	private List<org.carrot2.core.Document> prepareDocumentsForClustering(IndexSearcher isearch, ScoreDoc[] hits, 
-			boolean fetchNumberOfCitations) {
+			boolean fetchNumberOfCitations, boolean setKeys, PhaseTimer timer) {
+		long[] citations = null;
+		if (fetchNumberOfCitations)
+			try (PhaseTimer.Phase phase = timer.start("citations")) {
+				citations = readNumberOfCitations(isearch, hits);
+			} catch (IOException e) {
+				// Documents are still clustered, without number of citations
+				logger.error("Can't read number of citations from the index", e);
+			}
+
 		List<org.carrot2.core.Document> docsForClustering = new ArrayList<>();
+		List<String> keys = new ArrayList<>();
+		List<LeafReaderContext> leaves = isearch.getIndexReader().leaves();
+		PhaseTimer.Phase phase = timer.start("hydrate");
 		for( int i = 0; i < hits.length; i++){
-			Document doc;
+			org.carrot2.core.Document docForClustering = new org.carrot2.core.Document();
+			String key;
 			try {
-				doc = isearch.doc(hits[i].doc);
+				key = hydrate(isearch, leaves, hits[i].doc, docForClustering);
 			} catch (IOException e1) {
 				// TODO Auto-generated catch block
 				e1.printStackTrace();
 				continue;
 			}
-			org.carrot2.core.Document docForClustering = new org.carrot2.core.Document();
-			docForClustering.setContentUrl(new File(doc.get("file")).toURI().toString());
-			docForClustering.setTitle(doc.get("title"));
-			docForClustering.setField("authors", doc.get("authors"));
-			docForClustering.setField("keyword", doc.get("keyword"));
-			docForClustering.setField("citString", doc.getValues("citString"));
 			docForClustering.setField("relevance", hits[i].score );
 			docForClustering.setScore((double) hits[i].score);
+			if (setKeys && key != null)
+				docForClustering.setField("key", key);
 
-			if (fetchNumberOfCitations)
-				try {
-					docForClustering.setField("numCitations", DatabaseHelper.getNumberOfCitations(doc));
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+			if (citations != null){
+				long numCitations = citations[i];
+				if (citationFreshness != null){
+					Long fresh = key != null ? citationFreshness.get(key) : null;
+					if (fresh != null)
+						numCitations = fresh;
+					keys.add(key);
 				}
+				docForClustering.setField("numCitations", numCitations);
+			}
 			docsForClustering.add(docForClustering);
 		}
+		phase.close();
+
+		// Counts found in the graph are used by next searches
+		if (citationFreshness != null && !keys.isEmpty())
+			citationFreshness.check(keys);
 		return docsForClustering;
 	}
 
+	/**
+	 * Sets display fields of a hit: from the segment metadata cache when
+	 * available, otherwise loading only the display stored fields.
+	 * @return the document key
+	 */
+	private String hydrate(IndexSearcher isearch, List<LeafReaderContext> leaves, int docId, 
+			org.carrot2.core.Document docForClustering) throws IOException {
+		if (metadataCache != null){
+			LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+			SegmentMetadataCache.Segment segment = metadataCache.get(leaf.reader());
+			if (segment != null){
+				int doc = docId - leaf.docBase;
+				docForClustering.setContentUrl(new File(segment.get("file", doc)).toURI().toString());
+				docForClustering.setTitle(segment.get("title", doc));
+				docForClustering.setField("authors", segment.get("authors", doc));
+				docForClustering.setField("keyword", segment.get("keyword", doc));
+				docForClustering.setField("numReferences", segment.getNumReferences(doc));
+				return segment.get("key", doc);
+			}
+		}
+
+		Document doc = isearch.doc(docId, DISPLAY_FIELDS);
+		docForClustering.setContentUrl(new File(doc.get("file")).toURI().toString());
+		docForClustering.setTitle(doc.get("title"));
+		docForClustering.setField("authors", doc.get("authors"));
+		docForClustering.setField("keyword", doc.get("keyword"));
+		BytesRef references = doc.getBinaryValue(References.FIELD);
+		docForClustering.setField("numReferences", references != null ? References.count(references) : 0);
+		return DatabaseHelper.getKey(doc);
+	}
+
+	/**
+	 * Reads number of citations of the hits from the static rank field
+	 * (number of citations plus one). Hits are visited in index order, so
+	 * each segment doc values are read once and forward only.
+	 * @return number of citations of each hit, in hits order
+	 */
+	private long[] readNumberOfCitations(IndexSearcher isearch, ScoreDoc[] hits) throws IOException {
+		long[] citations = new long[hits.length];
+		Integer[] order = new Integer[hits.length];
+		for(int i = 0; i < hits.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Integer.compare(hits[a].doc, hits[b].doc));
+
+		List<LeafReaderContext> leaves = isearch.getIndexReader().leaves();
+		LeafReaderContext leaf = null;
+		NumericDocValues ranks = null;
+		for(int i : order){
+			int doc = hits[i].doc;
+			if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()){
+				leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+				ranks = DocValues.getNumeric(leaf.reader(), StaticRankCollector.FIELD);
+			}
+			citations[i] = Math.max(0L, ranks.get(doc - leaf.docBase) - 1);
+		}
+		return citations;
+	}
+
 	private List<String> getListOfTerms(String term) {
 		List<String> matchList = new ArrayList<String>();
 		Pattern regex = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"|'([^']*)'");
@@ -205,32 +962,74 @@ public class PapersIndexSearcher implements DocumentSearcher {
 	}
 
 
+	/**
+	 * Builds the query for the search terms, boosted by number of citations.
+	 */
+	private Query buildQuery(List<String> terms) throws IOException {
+		Query query = terms.size() > 1 ? buildBooleanQuery(terms) : buildSimpleQuery(terms);
+		return new BoostedQuery(query, citationBoost);
+	}
+
+	/**
+	 * Builds the query for the search terms with a filter clause for
+	 * each facet field: a term query for a single value or a disjunction
+	 * of term queries.
+	 */
+	private Query buildQuery(List<String> terms, Map<String, List<String>> filters) throws IOException {
+		Query query = buildQuery(terms);
+		if (filters.isEmpty())
+			return query;
+		BooleanQuery.Builder builder = new BooleanQuery.Builder();
+		builder.add(query, Occur.MUST);
+		for(Map.Entry<String, List<String>> filter : filters.entrySet()){
+			Set<String> values = new TreeSet<>(filter.getValue());
+			if (values.isEmpty())
+				continue;
+			if (values.size() == 1){
+				builder.add(new TermQuery(new Term(filter.getKey(), values.iterator().next())), Occur.FILTER);
+				continue;
+			}
+			BooleanQuery.Builder valuesBuilder = new BooleanQuery.Builder();
+			for(String value : values)
+				valuesBuilder.add(new TermQuery(new Term(filter.getKey(), value)), Occur.SHOULD);
+			builder.add(valuesBuilder.build(), Occur.FILTER);
+		}
+		return builder.build();
+	}
+
 	private Query buildSimpleQuery(List<String> terms) {
 		Query query;
 		String t = terms.get(0);
-		if (t.matches("^\".*\"$")){
-			PhraseQuery.Builder phraseBuilder = new PhraseQuery.Builder();
-			for(String s : t.split("\\s+"))
-				phraseBuilder.add(new Term("body", s));
-			query = phraseBuilder.build();
-		}
+		if (isPhrase(t))
+			query = buildPhraseQuery(t);
 		else
 			query = new TermQuery(new Term("body", t));
 
 		return query;
 	}
 
+	/**
+	 * @return whether a term of {@link #getListOfTerms(String)} is a phrase: quotes 
+	 * are removed from quoted terms, so only they have several words.
+	 */
+	private static boolean isPhrase(String term) {
+		return term.trim().split("\\s+").length > 1;
+	}
+
+	private static Query buildPhraseQuery(String phrase) {
+		PhraseQuery.Builder phraseBuilder = new PhraseQuery.Builder();
+		for(String s : phrase.trim().split("\\s+"))
+			phraseBuilder.add(new Term("body", s));
+		return phraseBuilder.build();
+	}
+
 	private Query buildBooleanQuery(List<String> terms) throws IOException {
 		BooleanQuery.Builder builder = new BooleanQuery.Builder();
 		for(int i = 0; i < terms.size(); i++){
 			String t = terms.get(i);
 			Query q;
-			if (t.matches("^\".*\"$")){
-				PhraseQuery.Builder phraseBuilder = new PhraseQuery.Builder();
-				for(String s : t.split("\\s+"))
-					phraseBuilder.add(new Term("body", s));
-				builder.add(phraseBuilder.build(), Occur.MUST);
-			}
+			if (isPhrase(t))
+				builder.add(buildPhraseQuery(t), Occur.MUST);
 			else {
 				q = new TermQuery(new Term("body", t));
 				builder.add(q, Occur.SHOULD);
@@ -243,10 +1042,18 @@ public class PapersIndexSearcher implements DocumentSearcher {
 		return DirectoryReader.open(directory);
 	}
 
+	/**
+	 * Stops background refreshes and checks and closes searchers.
+	 */
 	@Override
-	protected void finalize() throws Throwable {
-		super.finalize();
-		getSearcherManager().close();
+	public void close() throws IOException {
+		refresher.close();
+		suggester.shutdown();
+		if (citationFreshness != null)
+			citationFreshness.shutdown();
+		searchers.close();
+		mgr.close();
+		directory.close();
 	}
 
 	public IndexSearcher getIndexSearcher() throws IOException{
@@ -0,0 +1,141 @@
+package services.search;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * In-memory LRU cache of search results bounded by an
+ * estimated size in bytes.
+ * <p>Entries are weighed when inserted, least recently used
+ * entries are evicted until the total weight fits the limit. Values
+ * heavier than the limit are never cached. Hit, miss and eviction
+ * counts are kept for monitoring.</p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ *
+ * @author jose
+ */
+public class ResultCache<K, V> {
+
+	/**
+	 * Estimated overhead of each entry (key, map entry and references)
+	 */
+	private static final long ENTRY_OVERHEAD = 128;
+
+	private final long maxBytes;
+
+	private final ToLongFunction<V> weigher;
+
+	/**
+	 * Access ordered map: the first entry is the least recently used
+	 */
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long bytes;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	private static class Entry<V> {
+		final V value;
+		final long weight;
+
+		Entry(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Creates a new cache.
+	 * @param maxBytes maximum total weight of entries
+	 * @param weigher estimates the size in bytes of a value
+	 */
+	public ResultCache(long maxBytes, ToLongFunction<V> weigher) {
+		this.maxBytes = maxBytes;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Returns the cached value for a key.
+	 * @param key the key
+	 * @return cached value or null if not found.
+	 */
+	public synchronized V get(K key){
+		Entry<V> entry = entries.get(key);
+		if (entry == null){
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value;
+	}
+
+	/**
+	 * Adds a value to the cache, evicting least recently used
+	 * entries if needed.
+	 * @param key the key
+	 * @param value the value
+	 */
+	public synchronized void put(K key, V value){
+		long weight = weigher.applyAsLong(value) + ENTRY_OVERHEAD;
+		if (weight > maxBytes)
+			return;
+
+		Entry<V> previous = entries.put(key, new Entry<>(value, weight));
+		if (previous != null)
+			bytes -= previous.weight;
+		bytes += weight;
+
+		Iterator<Entry<V>> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()){
+			Entry<V> eldest = it.next();
+			it.remove();
+			bytes -= eldest.weight;
+			evictions++;
+		}
+	}
+
+	/**
+	 * Removes all entries. Called when the index is
+	 * reopened and cached results become stale.
+	 */
+	public synchronized void invalidateAll(){
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return current statistics: hits, misses, evictions, entries,
+	 * bytes and maxBytes.
+	 */
+	public synchronized Map<String, Long> getStatistics(){
+		Map<String, Long> stats = new HashMap<>();
+		stats.put("hits", hits);
+		stats.put("misses", misses);
+		stats.put("evictions", evictions);
+		stats.put("entries", (long) entries.size());
+		stats.put("bytes", bytes);
+		stats.put("maxBytes", maxBytes);
+		return stats;
+	}
+}
@@ -0,0 +1,95 @@
+package services.search;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import org.carrot2.core.Cluster;
+
+/**
+ * Converts partial search results into named events:
+ * <ul>
+ * <li><code>hits</code>: ranked documents, same structure as the full result with no clusters;</li>
+ * <li><code>clusters</code>: clusters with their document ids, without layout;</li>
+ * <li><code>layout</code>: coordinates and neighbors of each cluster, in the order of
+ * <code>clusters</code>, as a base64 binary frame with quantized coordinates 
+ * ({@link BinaryResultWriter#writeLayout(List, java.io.OutputStream)}), so browsers
+ * decode it into typed arrays instead of parsing Json numbers.</li>
+ * </ul>
+ *
+ * @author jose
+ */
+public class SearchEvents implements SearchListener {
+
+	public static final String HITS = "hits";
+
+	public static final String CLUSTERS = "clusters";
+
+	public static final String LAYOUT = "layout";
+
+	private final BiConsumer<String, String> sink;
+
+	private final AtomicBoolean cancelled = new AtomicBoolean();
+
+	/**
+	 * @param sink receives event name and data
+	 */
+	public SearchEvents(BiConsumer<String, String> sink) {
+		this.sink = sink;
+	}
+
+	@Override
+	public void onHits(SearchResult hits) {
+		send(HITS, hits, Collections.emptySet());
+	}
+
+	@Override
+	public void onClusters(List<Cluster> clusters) {
+		send(CLUSTERS, new SearchResult(Collections.emptyList(), clusters), SearchResult.LAYOUT_ATTRIBUTES);
+	}
+
+	@Override
+	public void onLayout(List<Cluster> clusters) {
+		if (cancelled.get())
+			return;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			new BinaryResultWriter(true).writeLayout(clusters, out);
+		} catch (IOException e) {
+			// Writing to memory never fails
+			throw new IllegalStateException(e);
+		}
+		sink.accept(LAYOUT, Base64.getEncoder().encodeToString(out.toByteArray()));
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled.get();
+	}
+
+	/**
+	 * Stops sending events and makes the search stop at the next phase.
+	 */
+	public void cancel() {
+		cancelled.set(true);
+	}
+
+	private void send(String name, SearchResult result, Set<String> excludedAttributes) {
+		if (cancelled.get())
+			return;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			result.writeJson(out, excludedAttributes);
+		} catch (IOException e) {
+			// Writing to memory never fails
+			throw new IllegalStateException(e);
+		}
+		sink.accept(name, new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+}
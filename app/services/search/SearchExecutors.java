@@ -0,0 +1,98 @@
+package services.search;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import play.Configuration;
+import play.inject.ApplicationLifecycle;
+
+/**
+ * Executors used to run searches outside Play's default dispatcher.
+ * <p>CPU-bound work (clustering and projection) runs on the compute
+ * executor, sized by the number of processors. Blocking I/O (remote
+ * search services) runs on a separate, larger I/O executor. Response bodies
+ * are written on their own executor, since writes block while clients are
+ * slow to read: slow clients don't take threads of remote searches. All have
+ * bounded queues: when a queue is full the task is rejected with a
+ * {@link java.util.concurrent.RejectedExecutionException} instead of
+ * piling up requests.</p>
+ *
+ * @author jose
+ *
+ */
+@Singleton
+public class SearchExecutors {
+
+	private final ThreadPoolExecutor compute;
+
+	private final ThreadPoolExecutor io;
+
+	private final ThreadPoolExecutor response;
+
+	@Inject
+	public SearchExecutors(Configuration configuration, ApplicationLifecycle lifecycle) {
+		this(configuration.getInt("search.executor.compute.threads", Runtime.getRuntime().availableProcessors()),
+				configuration.getInt("search.executor.compute.queueSize", 64),
+				configuration.getInt("search.executor.io.threads", 32),
+				configuration.getInt("search.executor.io.queueSize", 256),
+				configuration.getInt("search.executor.response.threads", 16),
+				configuration.getInt("search.executor.response.queueSize", 256));
+		lifecycle.addStopHook(() -> {
+			shutdown();
+			return CompletableFuture.completedFuture(null);
+		});
+	}
+
+	public SearchExecutors(int computeThreads, int computeQueueSize, int ioThreads, int ioQueueSize,
+			int responseThreads, int responseQueueSize) {
+		this.compute = newExecutor("search-compute", computeThreads, computeQueueSize);
+		this.io = newExecutor("search-io", ioThreads, ioQueueSize);
+		this.response = newExecutor("search-response", responseThreads, responseQueueSize);
+	}
+
+	private static ThreadPoolExecutor newExecutor(String name, int threads, int queueSize) {
+		AtomicInteger counter = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), factory, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * @return executor for CPU-bound search work
+	 */
+	public Executor compute() {
+		return compute;
+	}
+
+	/**
+	 * @return executor for blocking I/O
+	 */
+	public Executor io() {
+		return io;
+	}
+
+	/**
+	 * @return executor for writing response bodies
+	 */
+	public Executor response() {
+		return response;
+	}
+
+	public void shutdown() {
+		compute.shutdownNow();
+		io.shutdownNow();
+		response.shutdownNow();
+	}
+}
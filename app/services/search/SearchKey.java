@@ -0,0 +1,60 @@
+package services.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Identifies a search request: normalized terms and all parameters
+ * that change its result. Two requests with equal keys produce the
+ * same result for the same index version.
+ *
+ * @author jose
+ */
+public final class SearchKey {
+
+	private final List<String> terms;
+
+	private final Object[] parameters;
+
+	/**
+	 * Creates a new key.
+	 * @param terms the search terms (quoted phrases as single terms)
+	 * @param parameters other parameters: result count, clustering parameters,
+	 * index version etc.
+	 */
+	public SearchKey(List<String> terms, Object... parameters) {
+		List<String> normalized = new ArrayList<>(terms.size());
+		for(String t : terms)
+			normalized.add(t.trim().replaceAll("\\s+", " "));
+		// Terms are boolean clauses, so order does not change results
+		Collections.sort(normalized);
+		this.terms = Collections.unmodifiableList(normalized);
+		this.parameters = parameters;
+	}
+
+	public List<String> getTerms() {
+		return terms;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * terms.hashCode() + Arrays.hashCode(parameters);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof SearchKey))
+			return false;
+		SearchKey other = (SearchKey) obj;
+		return terms.equals(other.terms) && Arrays.equals(parameters, other.parameters);
+	}
+
+	@Override
+	public String toString() {
+		return terms + " " + Arrays.toString(parameters);
+	}
+}
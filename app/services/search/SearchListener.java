@@ -0,0 +1,18 @@
+package services.search;
+
+import services.clustering.ProcessingListener;
+
+/**
+ * Receives partial results of a search: ranked hits, then clusters
+ * and then documents layout.
+ *
+ * @author jose
+ */
+public interface SearchListener extends ProcessingListener {
+
+	/**
+	 * Called as soon as documents are found, before clustering.
+	 * @param hits ranked documents, without clusters
+	 */
+	public void onHits(SearchResult hits);
+}
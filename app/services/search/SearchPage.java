@@ -0,0 +1,143 @@
+package services.search;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.carrot2.core.Cluster;
+import org.carrot2.core.Document;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import services.clustering.IncrementalLayout.Placement;
+
+/**
+ * A page of search results with a cursor to the next page.
+ * <p>The first page is a complete {@link SearchResult}. Next pages have
+ * only the new documents, numbered after the previous pages, and their
+ * placement into the first page clusters: for each cluster the new
+ * document ids, coordinates and neighbors, so clients can append them to
+ * the existing layout.</p>
+ *
+ * @author jose
+ */
+public class SearchPage {
+
+	private final SearchResult result;
+
+	private final List<Document> documents;
+
+	private final int firstDocumentId;
+
+	private final List<Placement> placements;
+
+	private final List<Cluster> clusters;
+
+	private final String cursor;
+
+	/**
+	 * Creates the first page.
+	 * @param result the clustered result
+	 * @param cursor cursor to the next page or null if there are no more results
+	 */
+	public SearchPage(SearchResult result, String cursor) {
+		this.result = result;
+		this.documents = Collections.emptyList();
+		this.firstDocumentId = 0;
+		this.placements = Collections.emptyList();
+		this.clusters = Collections.emptyList();
+		this.cursor = cursor;
+	}
+
+	/**
+	 * Creates a next page.
+	 * @param documents new documents
+	 * @param firstDocumentId id of the first new document
+	 * @param placements placement of each new document
+	 * @param clusters first page clusters
+	 * @param cursor cursor to the next page or null if there are no more results
+	 */
+	public SearchPage(List<Document> documents, int firstDocumentId, List<Placement> placements,
+			List<Cluster> clusters, String cursor) {
+		this.result = null;
+		this.documents = documents;
+		this.firstDocumentId = firstDocumentId;
+		this.placements = placements;
+		this.clusters = clusters;
+		this.cursor = cursor;
+	}
+
+	public String getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * Writes the page as Json. The output stream is not closed.
+	 * @param out the output stream
+	 * @throws IOException if the stream can't be written
+	 */
+	public void writeJson(OutputStream out) throws IOException {
+		try (JsonGenerator generator = SearchResult.createGenerator(out)) {
+			generator.writeStartObject();
+			generator.writeStringField("cursor", cursor);
+			if (result != null)
+				result.writeFields(generator, Collections.emptySet());
+			else
+				writePlacements(generator);
+			generator.writeEndObject();
+		}
+	}
+
+	private void writePlacements(JsonGenerator generator) throws IOException {
+		generator.writeArrayFieldStart("documents");
+		for(int i = 0; i < documents.size(); i++)
+			SearchResult.writeDocument(generator, documents.get(i), String.valueOf(firstDocumentId + i));
+		generator.writeEndArray();
+
+		List<List<Integer>> byCluster = new ArrayList<>(clusters.size());
+		for(int c = 0; c < clusters.size(); c++)
+			byCluster.add(new ArrayList<>());
+		for(int i = 0; i < placements.size(); i++)
+			byCluster.get(placements.get(i).getCluster()).add(i);
+
+		generator.writeArrayFieldStart("clusters");
+		for(int c = 0; c < clusters.size(); c++){
+			List<Integer> placed = byCluster.get(c);
+			if (placed.isEmpty())
+				continue;
+			generator.writeStartObject();
+			Integer id = clusters.get(c).getId();
+			if (id != null)
+				generator.writeNumberField("id", id);
+			generator.writeArrayFieldStart("documents");
+			for(int i : placed)
+				generator.writeString(String.valueOf(firstDocumentId + i));
+			generator.writeEndArray();
+
+			generator.writeObjectFieldStart("attributes");
+			generator.writeArrayFieldStart("coordinates");
+			for(int i : placed){
+				double[] point = placements.get(i).getCoordinates();
+				generator.writeStartArray();
+				generator.writeNumber(point[0]);
+				generator.writeNumber(point[1]);
+				generator.writeEndArray();
+			}
+			generator.writeEndArray();
+			generator.writeArrayFieldStart("neighbors");
+			for(int i : placed){
+				generator.writeStartArray();
+				for(int neighbor : placements.get(i).getNeighbors())
+					generator.writeNumber(neighbor);
+				generator.writeEndArray();
+			}
+			generator.writeEndArray();
+			generator.writeEndObject();
+
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+	}
+}
@@ -0,0 +1,277 @@
+package services.search;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.carrot2.core.Cluster;
+import org.carrot2.core.Document;
+import org.carrot2.core.LanguageCode;
+import org.carrot2.core.ProcessingResult;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Result of a search: documents found and their clusters.
+ * <p>The result is written as Json directly to an output stream, one
+ * document and one cluster at a time, so the whole Json is never held in
+ * memory. The Json has the same structure as Carrot2's
+ * {@link ProcessingResult#serializeJson(java.io.Writer)}.</p>
+ *
+ * @author jose
+ */
+public class SearchResult {
+
+	/**
+	 * Cluster attributes with documents layout.
+	 */
+	static final Set<String> LAYOUT_ATTRIBUTES = Collections.unmodifiableSet(
+			new HashSet<>(Arrays.asList("coordinates", "neighbors")));
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	static {
+		MAPPER.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	}
+
+	private final List<Document> documents;
+
+	private final List<Cluster> clusters;
+
+	/**
+	 * Number of hits by value of each facet field, if counted
+	 */
+	private Map<String, Map<String, Integer>> facets = Collections.emptyMap();
+
+	private volatile long jsonSize = -1;
+
+	public SearchResult(ProcessingResult result) {
+		this(result.getDocuments(), result.getClusters());
+	}
+
+	public SearchResult(List<Document> documents, List<Cluster> clusters) {
+		this.documents = documents != null ? documents : Collections.emptyList();
+		this.clusters = clusters != null ? clusters : Collections.emptyList();
+	}
+
+	public List<Document> getDocuments() {
+		return documents;
+	}
+
+	public List<Cluster> getClusters() {
+		return clusters;
+	}
+
+	/**
+	 * @return number of hits by value of each facet field, empty if
+	 * facets were not counted
+	 */
+	public Map<String, Map<String, Integer>> getFacets() {
+		return facets;
+	}
+
+	/**
+	 * Sets facet counts. It must be called before the result is
+	 * shared or written.
+	 * @param facets number of hits by value of each facet field
+	 */
+	public void setFacets(Map<String, Map<String, Integer>> facets) {
+		this.facets = facets;
+	}
+
+	/**
+	 * Sends this result to a listener, as if it were found progressively.
+	 * @param listener the search listener
+	 */
+	public void replay(SearchListener listener) {
+		if (listener.isCancelled())
+			return;
+		listener.onHits(new SearchResult(documents, Collections.emptyList()));
+		listener.onClusters(clusters);
+		listener.onLayout(clusters);
+	}
+
+	/**
+	 * Writes the result as Json. The output stream is not closed.
+	 * @param out the output stream
+	 * @throws IOException if the stream can't be written
+	 */
+	public void writeJson(OutputStream out) throws IOException {
+		writeJson(out, Collections.emptySet());
+	}
+
+	/**
+	 * Writes the result as Json with a debug field, <code>timings</code>:
+	 * duration in milliseconds of each search phase. The output stream is not closed.
+	 * @param out the output stream
+	 * @param timings duration of each phase
+	 * @throws IOException if the stream can't be written
+	 */
+	public void writeJson(OutputStream out, Map<String, Double> timings) throws IOException {
+		try (JsonGenerator generator = createGenerator(out)) {
+			generator.writeStartObject();
+			writeFields(generator, Collections.emptySet());
+			generator.writeObjectFieldStart("timings");
+			for(Map.Entry<String, Double> timing : timings.entrySet())
+				generator.writeNumberField(timing.getKey(), timing.getValue());
+			generator.writeEndObject();
+			generator.writeEndObject();
+		}
+	}
+
+	/**
+	 * Writes the result as Json, leaving out some cluster attributes.
+	 * @param out the output stream
+	 * @param excludedAttributes cluster attributes not written
+	 * @throws IOException if the stream can't be written
+	 */
+	void writeJson(OutputStream out, Set<String> excludedAttributes) throws IOException {
+		try (JsonGenerator generator = createGenerator(out)) {
+			generator.writeStartObject();
+			writeFields(generator, excludedAttributes);
+			generator.writeEndObject();
+		}
+	}
+
+	/**
+	 * Writes "documents" and "clusters" fields, and "facets" if they
+	 * were counted. Documents without id are identified by their position.
+	 */
+	void writeFields(JsonGenerator generator, Set<String> excludedAttributes) throws IOException {
+		generator.writeArrayFieldStart("documents");
+		for(int i = 0; i < documents.size(); i++){
+			Document doc = documents.get(i);
+			writeDocument(generator, doc, doc.getStringId() != null ? doc.getStringId() : String.valueOf(i));
+		}
+		generator.writeEndArray();
+
+		generator.writeArrayFieldStart("clusters");
+		for(Cluster cluster : clusters)
+			writeCluster(generator, cluster, excludedAttributes);
+		generator.writeEndArray();
+
+		if (!facets.isEmpty())
+			generator.writeObjectField("facets", facets);
+	}
+
+	static JsonGenerator createGenerator(OutputStream out) throws IOException {
+		return MAPPER.getFactory().createGenerator(out, JsonEncoding.UTF8);
+	}
+
+	/**
+	 * @return size in bytes of the Json representation. It is
+	 * calculated once, without buffering the Json.
+	 */
+	public long getJsonSize() {
+		if (jsonSize < 0){
+			CountingOutputStream counter = new CountingOutputStream();
+			try {
+				writeJson(counter);
+			} catch (IOException e) {
+				// Counting never fails
+				throw new IllegalStateException(e);
+			}
+			jsonSize = counter.count;
+		}
+		return jsonSize;
+	}
+
+	static void writeDocument(JsonGenerator generator, Document doc, String id) throws IOException {
+		generator.writeStartObject();
+		generator.writeStringField("id", id);
+		writeIfNotNull(generator, "title", doc.getTitle());
+		writeIfNotNull(generator, "snippet", doc.getSummary());
+		writeIfNotNull(generator, "url", doc.getContentUrl());
+		List<String> sources = doc.getSources();
+		if (sources != null && !sources.isEmpty())
+			generator.writeObjectField("sources", sources);
+		LanguageCode language = doc.getLanguage();
+		if (language != null)
+			generator.writeStringField("language", language.getIsoCode());
+
+		generator.writeObjectFieldStart("fields");
+		for(Map.Entry<String, Object> field : doc.getFields().entrySet()){
+			switch (field.getKey()) {
+			case Document.TITLE:
+			case Document.SUMMARY:
+			case Document.CONTENT_URL:
+			case Document.SOURCES:
+			case Document.LANGUAGE:
+				break;
+			default:
+				generator.writeObjectField(field.getKey(), field.getValue());
+			}
+		}
+		generator.writeEndObject();
+
+		generator.writeEndObject();
+	}
+
+	private static void writeCluster(JsonGenerator generator, Cluster cluster, 
+			Set<String> excludedAttributes) throws IOException {
+		generator.writeStartObject();
+		Integer id = cluster.getId();
+		if (id != null)
+			generator.writeNumberField("id", id);
+		generator.writeNumberField("size", cluster.size());
+		Double score = cluster.getScore();
+		if (score != null)
+			generator.writeNumberField("score", score);
+
+		generator.writeArrayFieldStart("phrases");
+		for(String phrase : cluster.getPhrases())
+			generator.writeString(phrase);
+		generator.writeEndArray();
+
+		generator.writeArrayFieldStart("documents");
+		for(Document doc : cluster.getDocuments())
+			generator.writeString(doc.getStringId());
+		generator.writeEndArray();
+
+		generator.writeObjectFieldStart("attributes");
+		for(Map.Entry<String, Object> attribute : cluster.getAttributes().entrySet()){
+			if (!excludedAttributes.contains(attribute.getKey()))
+				generator.writeObjectField(attribute.getKey(), attribute.getValue());
+		}
+		generator.writeEndObject();
+
+		List<Cluster> subclusters = cluster.getSubclusters();
+		if (!subclusters.isEmpty()){
+			generator.writeArrayFieldStart("clusters");
+			for(Cluster subcluster : subclusters)
+				writeCluster(generator, subcluster, excludedAttributes);
+			generator.writeEndArray();
+		}
+		generator.writeEndObject();
+	}
+
+	private static void writeIfNotNull(JsonGenerator generator, String name, String value) throws IOException {
+		if (value != null)
+			generator.writeStringField(name, value);
+	}
+
+	/**
+	 * Discards written bytes, only counting them.
+	 */
+	private static final class CountingOutputStream extends OutputStream {
+
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
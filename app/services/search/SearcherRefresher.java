@@ -0,0 +1,97 @@
+package services.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.ReferenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background thread reopening searchers, so searches never pay the refresh
+ * cost.
+ * <p>Searchers are refreshed at least every <code>maxStaleness</code>. When
+ * the index is known to have changed (see {@link #requestRefresh()}) they are
+ * refreshed as soon as possible, but not sooner than <code>minStaleness</code>
+ * after the previous refresh, so bursts of changes cause a single reopen.</p>
+ *
+ * @author jose
+ */
+public class SearcherRefresher implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(SearcherRefresher.class);
+
+	private final ReferenceManager<?> manager;
+
+	private final long minStaleness;
+
+	private final long maxStaleness;
+
+	private final Thread thread;
+
+	private long lastRefresh = System.nanoTime();
+
+	private boolean requested;
+
+	private volatile boolean closed;
+
+	/**
+	 * Creates and starts the refresh thread.
+	 * @param manager the searcher manager
+	 * @param minStaleness minimum time in milliseconds between refreshes
+	 * @param maxStaleness maximum time in milliseconds between refreshes
+	 */
+	public SearcherRefresher(ReferenceManager<?> manager, long minStaleness, long maxStaleness) {
+		this.manager = manager;
+		this.minStaleness = TimeUnit.MILLISECONDS.toNanos(minStaleness);
+		this.maxStaleness = TimeUnit.MILLISECONDS.toNanos(Math.max(minStaleness, maxStaleness));
+		this.thread = new Thread(this::run, "searcher-refresh");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Asks for a refresh, because the index has changed. It returns
+	 * immediately: the refresh happens in background.
+	 */
+	public synchronized void requestRefresh() {
+		requested = true;
+		notifyAll();
+	}
+
+	private void run() {
+		while (!closed){
+			try {
+				synchronized (this) {
+					long next = lastRefresh + (requested ? minStaleness : maxStaleness);
+					long wait = next - System.nanoTime();
+					if (wait > 0){
+						TimeUnit.NANOSECONDS.timedWait(this, wait);
+						continue;
+					}
+					requested = false;
+				}
+				manager.maybeRefreshBlocking();
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException | RuntimeException e) {
+				logger.error("Can't refresh searcher", e);
+			}
+			synchronized (this) {
+				lastRefresh = System.nanoTime();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
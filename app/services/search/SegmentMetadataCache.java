@@ -0,0 +1,252 @@
+package services.search;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import services.References;
+
+/**
+ * Columnar cache of the small fields displayed with search results, by
+ * index segment.
+ * <p>Display fields are indexed as binary doc values besides stored fields.
+ * The first time a segment is used its doc values are decoded into one
+ * array per field, so hydrating hits is an array lookup instead of a stored
+ * fields block decompression per hit. Entries are keyed by segment core and
+ * removed when the core is closed.</p>
+ * <p>The cache is bounded by an estimated size in bytes. Segments are decoded
+ * while they fit; display fields of segments that don't fit are read from
+ * doc values for each hit, which still avoids stored fields. Space is freed
+ * as segments are merged away and their cores closed.</p>
+ * <p>Segments written before display doc values were indexed (without
+ * {@link #REQUIRED_FIELD} doc values) are not cached and
+ * {@link #get(LeafReader)} returns null for them.</p>
+ *
+ * @author jose
+ */
+public class SegmentMetadataCache {
+
+	/**
+	 * Display fields cached
+	 */
+	public static final String[] FIELDS = { "file", "title", "authors", "keyword", "key" };
+
+	/**
+	 * Field whose doc values tell a segment has display doc values
+	 */
+	public static final String REQUIRED_FIELD = "title";
+
+	/**
+	 * Estimated size of a string besides its characters
+	 */
+	private static final long STRING_OVERHEAD = 56;
+
+	private final long maxBytes;
+
+	private final Map<Object, Columns> segments = new HashMap<>();
+
+	/**
+	 * Segments that didn't fit, read from doc values
+	 */
+	private final Set<Object> uncached = new HashSet<>();
+
+	private long bytes;
+
+	/**
+	 * Display fields of a segment.
+	 */
+	public static abstract class Segment {
+
+		/**
+		 * @param field display field
+		 * @param doc document id, relative to the segment
+		 * @return field value or null if the document has no value
+		 */
+		public abstract String get(String field, int doc) throws IOException;
+
+		/**
+		 * @param doc document id, relative to the segment
+		 * @return number of references of the document
+		 */
+		public abstract int getNumReferences(int doc) throws IOException;
+	}
+
+	/**
+	 * Display fields decoded into arrays
+	 */
+	private static final class Columns extends Segment {
+
+		private final Map<String, String[]> columns;
+
+		private final int[] numReferences;
+
+		private final long size;
+
+		private Columns(Map<String, String[]> columns, int[] numReferences, long size) {
+			this.columns = columns;
+			this.numReferences = numReferences;
+			this.size = size;
+		}
+
+		@Override
+		public String get(String field, int doc) {
+			String[] column = columns.get(field);
+			return column != null ? column[doc] : null;
+		}
+
+		@Override
+		public int getNumReferences(int doc) {
+			return numReferences[doc];
+		}
+	}
+
+	/**
+	 * Display fields read from doc values of a segment too large to be cached.
+	 * Doc values are per thread, so instances must not be shared between threads.
+	 */
+	private static final class DocValuesSegment extends Segment {
+
+		private final LeafReader reader;
+
+		private DocValuesSegment(LeafReader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public String get(String field, int doc) throws IOException {
+			BinaryDocValues values = reader.getBinaryDocValues(field);
+			if (values == null || !DocValues.getDocsWithField(reader, field).get(doc))
+				return null;
+			return values.get(doc).utf8ToString();
+		}
+
+		@Override
+		public int getNumReferences(int doc) throws IOException {
+			return (int) DocValues.getNumeric(reader, References.COUNT_FIELD).get(doc);
+		}
+	}
+
+	/**
+	 * Creates a new cache.
+	 * @param maxBytes maximum estimated size of the decoded segments
+	 */
+	public SegmentMetadataCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the display fields of a segment, decoding them on first use
+	 * if they fit in the cache.
+	 * @param reader the segment reader
+	 * @return the display fields or null if the segment has no display doc values.
+	 * @throws IOException if doc values can't be read
+	 */
+	public Segment get(LeafReader reader) throws IOException {
+		if (reader.getBinaryDocValues(REQUIRED_FIELD) == null)
+			return null;
+
+		Object key = reader.getCoreCacheKey();
+		long available;
+		synchronized (this) {
+			Columns segment = segments.get(key);
+			if (segment != null)
+				return segment;
+			if (uncached.contains(key))
+				return new DocValuesSegment(reader);
+			available = maxBytes - bytes;
+		}
+
+		Columns segment = load(reader, available);
+		synchronized (this) {
+			if (segments.containsKey(key))
+				return segments.get(key);
+			if (uncached.contains(key))
+				return new DocValuesSegment(reader);
+			if (segment == null || bytes + segment.size > maxBytes){
+				uncached.add(key);
+				segment = null;
+			}
+			else{
+				segments.put(key, segment);
+				bytes += segment.size;
+			}
+		}
+		reader.addCoreClosedListener(this::remove);
+		return segment != null ? segment : new DocValuesSegment(reader);
+	}
+
+	private synchronized void remove(Object key) {
+		Columns segment = segments.remove(key);
+		if (segment != null)
+			bytes -= segment.size;
+		uncached.remove(key);
+	}
+
+	/**
+	 * @return number of segments cached
+	 */
+	public synchronized int size() {
+		return segments.size();
+	}
+
+	/**
+	 * @return estimated size in bytes of the segments cached
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return number of segments read from doc values because they didn't fit
+	 */
+	public synchronized int getUncached() {
+		return uncached.size();
+	}
+
+	/**
+	 * Decodes display fields of a segment, giving up as soon as they
+	 * are larger than <code>maxBytes</code>.
+	 * @return the decoded fields or null if they don't fit
+	 */
+	private static Columns load(LeafReader reader, long maxBytes) throws IOException {
+		int maxDoc = reader.maxDoc();
+		long size = 4L * maxDoc;
+		if (size > maxBytes)
+			return null;
+		Map<String, String[]> columns = new HashMap<>();
+		for(String field : FIELDS){
+			BinaryDocValues values = reader.getBinaryDocValues(field);
+			if (values == null)
+				continue;
+			Bits docsWithField = DocValues.getDocsWithField(reader, field);
+			String[] column = new String[maxDoc];
+			size += 8L * maxDoc;
+			for(int doc = 0; doc < maxDoc; doc++){
+				if (docsWithField.get(doc)){
+					BytesRef value = values.get(doc);
+					column[doc] = value.utf8ToString();
+					size += STRING_OVERHEAD + 2L * column[doc].length();
+				}
+				if (size > maxBytes)
+					return null;
+			}
+			columns.put(field, column);
+		}
+
+		int[] numReferences = new int[maxDoc];
+		NumericDocValues counts = DocValues.getNumeric(reader, References.COUNT_FIELD);
+		for(int doc = 0; doc < maxDoc; doc++)
+			numReferences[doc] = (int) counts.get(doc);
+
+		return new Columns(columns, numReferences, size);
+	}
+}
@@ -0,0 +1,73 @@
+package services.search;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent identical computations: while a computation
+ * for a key is in flight, callers with the same key attach to it
+ * and share its result instead of starting a new one.
+ *
+ * @param <K> key type
+ * @param <V> result type
+ *
+ * @author jose
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong executions = new AtomicLong();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Returns the in-flight computation for a key or starts a new one.
+	 * @param key the computation key
+	 * @param computation starts the computation. It is only called if there is
+	 * no computation in flight for the key.
+	 * @return a future completed with the (shared) result
+	 */
+	public CompletableFuture<V> execute(K key, Supplier<? extends CompletionStage<V>> computation){
+		CompletableFuture<V> created = new CompletableFuture<>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+		if (existing != null){
+			coalesced.incrementAndGet();
+			return existing;
+		}
+
+		executions.incrementAndGet();
+		try {
+			computation.get().whenComplete((value, e) -> {
+				inFlight.remove(key, created);
+				if (e != null)
+					created.completeExceptionally(e);
+				else
+					created.complete(value);
+			});
+		} catch (RuntimeException e) {
+			inFlight.remove(key, created);
+			created.completeExceptionally(e);
+			throw e;
+		}
+		return created;
+	}
+
+	/**
+	 * @return number of computations started
+	 */
+	public long getExecutions() {
+		return executions.get();
+	}
+
+	/**
+	 * @return number of calls attached to an in-flight computation
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+}
@@ -0,0 +1,171 @@
+package services.search;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.function.LongToDoubleFunction;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SortingMergePolicy;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+
+/**
+ * Top-k collector that stops collecting segments sorted by static rank
+ * (number of citations) as soon as their remaining documents can't enter
+ * the top-k.
+ * <p>Scores are a text score multiplied by a non-decreasing boost of the static 
+ * rank. In a segment sorted by {@link #SORT} boosts only decrease, so once the 
+ * k-th best score is greater than the best text score seen (times a slack factor)
+ * multiplied by the current boost, no later document of the segment is
+ * expected to compete.
+ * The text score bound is estimated, not exact, so results are an approximation
+ * of the exhaustive top-k. Segments not sorted (flushed but not merged yet) are
+ * collected entirely, and so are sorted segments whose static ranks were updated
+ * after they were merged: they are marked sorted but are no longer in rank order.</p>
+ *
+ * @author jose
+ */
+public class StaticRankCollector implements Collector {
+
+	/**
+	 * Static rank field: number of citations
+	 */
+	public static final String FIELD = "citCount";
+
+	/**
+	 * Index order: static rank, descending
+	 */
+	public static final Sort SORT = new Sort(new SortField(FIELD, SortField.Type.LONG, true));
+
+	private final int numHits;
+
+	private final int minLeafHits;
+
+	private final float slack;
+
+	private final LongToDoubleFunction boost;
+
+	/**
+	 * Top hits, worst hit first
+	 */
+	private final PriorityQueue<ScoreDoc> queue;
+
+	private double maxTextScore;
+
+	private int totalHits;
+
+	private int terminatedLeaves;
+
+	/**
+	 * Creates a new collector.
+	 * @param numHits number of top hits
+	 * @param minLeafHits minimum number of hits collected in each segment
+	 * before terminating it
+	 * @param slack multiplies the estimated text score bound; higher
+	 * values are closer to exhaustive collection
+	 * @param boost boost of a static rank, multiplied into text scores
+	 */
+	public StaticRankCollector(int numHits, int minLeafHits, float slack, LongToDoubleFunction boost) {
+		this.numHits = numHits;
+		this.minLeafHits = minLeafHits;
+		this.slack = slack;
+		this.boost = boost;
+		this.queue = new PriorityQueue<>(Math.max(1, numHits), (a, b) -> {
+			int cmp = Float.compare(a.score, b.score);
+			return cmp != 0 ? cmp : Integer.compare(b.doc, a.doc);
+		});
+	}
+
+	@Override
+	public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+		final LeafReader reader = context.reader();
+		final NumericDocValues ranks = DocValues.getNumeric(reader, FIELD);
+		final boolean sorted = isRankOrdered(reader);
+		final int docBase = context.docBase;
+
+		return new LeafCollector() {
+
+			private Scorer scorer;
+
+			private int collected;
+
+			@Override
+			public void setScorer(Scorer scorer) throws IOException {
+				this.scorer = scorer;
+			}
+
+			@Override
+			public void collect(int doc) throws IOException {
+				float score = scorer.score();
+				double docBoost = Math.max(Double.MIN_NORMAL, boost.applyAsDouble(ranks.get(doc)));
+				totalHits++;
+				collected++;
+				maxTextScore = Math.max(maxTextScore, score / docBoost);
+				add(docBase + doc, score);
+
+				if (sorted && collected >= minLeafHits && queue.size() == numHits
+						&& queue.peek().score > maxTextScore * slack * docBoost){
+					terminatedLeaves++;
+					throw new CollectionTerminatedException();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return whether documents of a segment are in static rank order: the
+	 * segment was sorted when merged and its doc values were not updated since
+	 */
+	private static boolean isRankOrdered(LeafReader reader) {
+		return reader instanceof SegmentReader && SortingMergePolicy.isSorted(reader, SORT)
+				&& !((SegmentReader) reader).getSegmentInfo().hasFieldUpdates();
+	}
+
+	private void add(int doc, float score) {
+		if (queue.size() < numHits)
+			queue.add(new ScoreDoc(doc, score));
+		else if (score > queue.peek().score){
+			queue.poll();
+			queue.add(new ScoreDoc(doc, score));
+		}
+	}
+
+	@Override
+	public boolean needsScores() {
+		return true;
+	}
+
+	/**
+	 * @return top hits, best first
+	 */
+	public ScoreDoc[] topDocs() {
+		ScoreDoc[] hits = new ScoreDoc[queue.size()];
+		PriorityQueue<ScoreDoc> copy = new PriorityQueue<>(queue);
+		for(int i = hits.length - 1; i >= 0; i--)
+			hits[i] = copy.poll();
+		return hits;
+	}
+
+	/**
+	 * @return number of documents collected
+	 */
+	public int getTotalHits() {
+		return totalHits;
+	}
+
+	/**
+	 * @return number of segments terminated early
+	 */
+	public int getTerminatedLeaves() {
+		return terminatedLeaves;
+	}
+}
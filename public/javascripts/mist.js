@@ -1,10 +1,40 @@
 $(document).ready(function() {
 	$( "#searchForm" ).submit(function( e ) {
 		e.preventDefault();
-		ajaxSubmitForm();
+		if (window.EventSource)
+			progressiveSubmitForm();
+		else
+			ajaxSubmitForm();
 	});
+	$( "#term" ).on("input", suggest);
 });
 
+// Search-as-you-type: suggestions are requested after a short pause
+// in typing, and responses to older prefixes are ignored.
+var suggestTimer = null;
+var suggestPrefix = null;
+
+function suggest(){
+	clearTimeout(suggestTimer);
+	var t = $("#term").val();
+	if (t.trim().length < 2)
+		return;
+	suggestTimer = setTimeout(function(){
+		suggestPrefix = t;
+		var r = jsRoutes.controllers.HomeController.suggest(t);
+		$.ajax({url: r.url, type: r.type, dataType: "json", success: function(data){
+			if (t != suggestPrefix)
+				return;
+			var list = $("#suggestions").empty();
+			$.each(["terms", "titles", "authors"], function(i, kind){
+				$.each(data[kind] || [], function(j, value){
+					list.append($("<option>").attr("value", value));
+				});
+			});
+		}});
+	}, 100);
+}
+
 successFn = function(data){
 	var svg = d3.select("svg"),
     width = +svg.attr("width"),
@@ -314,4 +344,103 @@ function ajaxSubmitForm(){
 	console.debug(r.url);
 	console.debug(r.type);
 	$.ajax({url: r.url, type: r.type, success: successFn, error: errorFn, dataType: "json"});
-}
\ No newline at end of file
+}
+
+// Cluster layouts of the layout event: a base64 binary frame with coordinates
+// and neighbors as typed arrays, in the order of the clusters event
+// (see services.search.BinaryResultWriter)
+decodeLayout = function(base64){
+	var bytes = atob(base64),
+		buffer = new ArrayBuffer(bytes.length),
+		view = new Uint8Array(buffer);
+	for(var i = 0; i < bytes.length; i++)
+		view[i] = bytes.charCodeAt(i);
+	
+	var header = new Uint32Array(buffer, 0, 3);
+	if (String.fromCharCode.apply(null, new Uint8Array(buffer, 0, 4)) != "EPCB")
+		throw "Invalid layout";
+	
+	var quantized = header[1] == 2,
+		m = header[2],
+		offset = 12,
+		layouts = new Array(m);
+	
+	for(var c = 0; c < m; c++){
+		var sizes = new Uint32Array(buffer, offset, 2),
+			n = sizes[0],
+			k = sizes[1];
+		offset += 8;
+		if (n == 0)
+			continue;
+		
+		var coords = new Array(n);
+		if (quantized){
+			var q = new Float32Array(buffer, offset, 4),
+				values = new Uint16Array(buffer, offset + 16, 2 * n);
+			for(var i = 0; i < n; i++)
+				coords[i] = [q[0] + values[2*i] * q[2], q[1] + values[2*i+1] * q[3]];
+			offset += 16 + 4 * n;
+		}
+		else {
+			var values = new Float32Array(buffer, offset, 2 * n);
+			for(var i = 0; i < n; i++)
+				coords[i] = [values[2*i], values[2*i+1]];
+			offset += 8 * n;
+		}
+		
+		var nbs = new Int32Array(buffer, offset, n * k),
+			neighbors = new Array(n);
+		for(var i = 0; i < n; i++)
+			neighbors[i] = nbs.subarray(i * k, (i + 1) * k);
+		offset += 4 * n * k;
+		
+		layouts[c] = {coordinates: coords, neighbors: neighbors};
+	}
+	return layouts;
+}
+
+// Progressive search: hits, clusters and layout are received as
+// server-sent events. Closing the source cancels the search in the server.
+var currentSearch = null;
+
+function progressiveSubmitForm(){
+	var t = $("#term").val();
+	var r = jsRoutes.controllers.HomeController.progressiveSearch(t);
+	if (currentSearch)
+		currentSearch.close();
+	
+	var data = null;
+	var source = new EventSource(r.url);
+	currentSearch = source;
+	
+	source.addEventListener("hits", function(e){
+		data = JSON.parse(e.data);
+		$("#status").text(data.documents.length + " documents found, clustering...");
+	});
+	source.addEventListener("clusters", function(e){
+		data.clusters = JSON.parse(e.data).clusters;
+		$("#status").text(data.clusters.length + " clusters found, projecting...");
+	});
+	source.addEventListener("layout", function(e){
+		var layouts = decodeLayout(e.data);
+		$.each(data.clusters, function(i, cluster){
+			var layout = layouts[i];
+			if (layout){
+				cluster.attributes.coordinates = layout.coordinates;
+				cluster.attributes.neighbors = layout.neighbors;
+			}
+		});
+		$("#status").text("");
+		successFn(data);
+	});
+	source.addEventListener("done", function(e){
+		source.close();
+		if (e.data == "not found")
+			$("#status").text("No documents found");
+	});
+	source.addEventListener("error", function(e){
+		source.close();
+		$("#status").text("");
+		errorFn(e);
+	});
+}
@@ -0,0 +1,232 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives concurrent searches against a running application for a fixed
+ * time and measures throughput, latency percentiles and allocation rate.
+ * <p>Each client thread sends requests back to back, picking queries at random
+ * from the scenario pool, and reads whole responses. Requests sent during
+ * the warm-up are not measured. Allocation is measured in this JVM, so the
+ * application must run in-process; bytes allocated by client threads are
+ * subtracted.</p>
+ *
+ * @author jose
+ */
+public class LoadGenerator {
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private final String baseUrl;
+
+	/**
+	 * @param baseUrl application URL, e.g. http://localhost:19001
+	 */
+	public LoadGenerator(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+
+	/**
+	 * Runs a scenario.
+	 * @param queries query pool
+	 * @param concurrency number of client threads
+	 * @param warmupSeconds warm-up time, not measured
+	 * @param durationSeconds measured time
+	 * @param accept Accept header, or null for Json
+	 * @param seed random seed of query choices
+	 * @return measures of the scenario
+	 * @throws Exception if client threads fail
+	 */
+	public Map<String, Object> run(List<String> queries, int concurrency, int warmupSeconds, int durationSeconds,
+			String accept, long seed) throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+		try {
+			// Warm-up
+			long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+			List<Future<Client>> warmup = new ArrayList<>();
+			for(int i = 0; i < concurrency; i++)
+				warmup.add(clients.submit(new Client(queries, accept, new Random(seed - i - 1), warmupEnd)));
+			for(Future<Client> f : warmup)
+				f.get();
+
+			// Measure
+			long[] gcBefore = gcCounts();
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+			List<Future<Client>> running = new ArrayList<>();
+			for(int i = 0; i < concurrency; i++)
+				running.add(clients.submit(new Client(queries, accept, new Random(seed + i), end)));
+			List<Client> done = new ArrayList<>();
+			for(Future<Client> f : running)
+				done.add(f.get());
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			long allocated = allocatedBytes() - allocatedBefore;
+			long[] gcAfter = gcCounts();
+
+			return summarize(done, elapsed, allocated, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+		} finally {
+			clients.shutdownNow();
+		}
+	}
+
+	private static Map<String, Object> summarize(List<Client> clients, double elapsed, long allocated,
+			long gcCount, long gcTime) {
+		int total = 0;
+		for(Client c : clients)
+			total += c.count;
+		long[] latencies = new long[total];
+		int ok = 0, notFound = 0, errors = 0;
+		long clientAllocated = 0, bytes = 0;
+		int pos = 0;
+		for(Client c : clients){
+			System.arraycopy(c.latencies, 0, latencies, pos, c.count);
+			pos += c.count;
+			ok += c.ok;
+			notFound += c.notFound;
+			errors += c.errors;
+			clientAllocated += c.allocated;
+			bytes += c.bytes;
+		}
+		Arrays.sort(latencies);
+		long serverAllocated = Math.max(0, allocated - clientAllocated);
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("requests", total);
+		result.put("ok", ok);
+		result.put("notFound", notFound);
+		result.put("notFoundShare", total > 0 ? (double) notFound / total : 0);
+		result.put("errors", errors);
+		result.put("seconds", elapsed);
+		result.put("throughput", total / elapsed);
+		result.put("responseBytes", bytes);
+		Map<String, Double> percentiles = new LinkedHashMap<>();
+		percentiles.put("min", millis(latencies, 0));
+		percentiles.put("p50", millis(latencies, 0.50));
+		percentiles.put("p90", millis(latencies, 0.90));
+		percentiles.put("p99", millis(latencies, 0.99));
+		percentiles.put("p999", millis(latencies, 0.999));
+		percentiles.put("max", millis(latencies, 1));
+		result.put("latencyMillis", percentiles);
+		result.put("allocatedBytes", serverAllocated);
+		result.put("allocationRateMBps", serverAllocated / elapsed / (1024 * 1024));
+		result.put("allocatedBytesPerRequest", total > 0 ? serverAllocated / total : 0);
+		result.put("gcCount", gcCount);
+		result.put("gcMillis", gcTime);
+		return result;
+	}
+
+	private static double millis(long[] sorted, double quantile) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(quantile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+
+	/**
+	 * @return bytes allocated so far by all live threads
+	 */
+	private static long allocatedBytes() {
+		long[] ids = THREADS.getAllThreadIds();
+		long total = 0;
+		for(long bytes : THREADS.getThreadAllocatedBytes(ids))
+			if (bytes > 0)
+				total += bytes;
+		return total;
+	}
+
+	private static long[] gcCounts() {
+		long count = 0, time = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			count += Math.max(0, gc.getCollectionCount());
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return new long[] { count, time };
+	}
+
+	/**
+	 * A client thread: sends requests until the deadline.
+	 */
+	private class Client implements Callable<Client> {
+
+		private final List<String> queries;
+		private final String accept;
+		private final Random random;
+		private final long deadline;
+		private final byte[] buffer = new byte[64 * 1024];
+
+		long[] latencies = new long[1024];
+		int count, ok, notFound, errors;
+		long allocated, bytes;
+
+		Client(List<String> queries, String accept, Random random, long deadline) {
+			this.queries = queries;
+			this.accept = accept;
+			this.random = random;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public Client call() {
+			long allocatedBefore = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+			while (System.nanoTime() < deadline){
+				String query = queries.get(random.nextInt(queries.size()));
+				long start = System.nanoTime();
+				int status = request(query);
+				long latency = System.nanoTime() - start;
+				if (count == latencies.length)
+					latencies = Arrays.copyOf(latencies, count * 2);
+				latencies[count++] = latency;
+				if (status == 200)
+					ok++;
+				else if (status == 404)
+					notFound++;
+				else
+					errors++;
+			}
+			allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+			return this;
+		}
+
+		private int request(String query) {
+			HttpURLConnection con = null;
+			try {
+				URL url = new URL(baseUrl + "/search?term=" + URLEncoder.encode(query, StandardCharsets.UTF_8.name()));
+				con = (HttpURLConnection) url.openConnection();
+				if (accept != null)
+					con.setRequestProperty("Accept", accept);
+				int status = con.getResponseCode();
+				InputStream in = status < 400 ? con.getInputStream() : con.getErrorStream();
+				if (in != null){
+					try (InputStream is = in) {
+						int n;
+						while ((n = is.read(buffer)) > 0)
+							bytes += n;
+					}
+				}
+				return status;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+	}
+}
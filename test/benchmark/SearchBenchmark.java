@@ -0,0 +1,212 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import play.Application;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.test.Helpers;
+import play.test.TestServer;
+
+/**
+ * Benchmarks <code>/search</code> with the scenarios of a Json file
+ * (by default <code>test/benchmark/scenarios.json</code>).
+ * <p>A synthetic index is generated in a temporary directory (see
+ * {@link SyntheticIndex}) and, for each scenario, the application is started
+ * in-process with {@link services.search.PapersIndexSearcher} over that
+ * index, so every scenario starts with empty caches. The graph database is
+ * not used: searches don't fetch citation counts and background citation
+ * checks are disabled.</p>
+ * <p>Each scenario sets the number of concurrent clients, warm-up and measured
+ * time, a pool of queries generated from a weighted mix of query kinds
+ * (<code>frequent</code>, <code>rare</code> and <code>multi</code> terms,
+ * <code>phrase</code>), the Accept header and configuration overrides.
+ * Results are written as Json to <code>target/benchmarks</code>, one file
+ * per run, so runs can be compared.</p>
+ * <p>Queries should match documents: a scenario fails when the share of
+ * searches with no results is above its <code>maxNotFoundShare</code> 
+ * (default {@value #MAX_NOT_FOUND_SHARE}), since their latency is not 
+ * representative, and the benchmark then exits with status 1.</p>
+ * <pre>
+ * sbt "bench [scenarios.json]"
+ * </pre>
+ *
+ * @author jose
+ */
+public class SearchBenchmark {
+
+	private static final int PORT = 19001;
+
+	private static final double MAX_NOT_FOUND_SHARE = 0.05;
+
+	public static void main(String[] args) throws Exception {
+		Path scenariosFile = Paths.get(args.length > 0 ? args[0] : "test/benchmark/scenarios.json");
+		ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+		JsonNode spec = mapper.readTree(scenariosFile.toFile());
+
+		JsonNode indexSpec = spec.path("index");
+		int numDocs = indexSpec.path("documents").asInt(10000);
+		long seed = indexSpec.path("seed").asLong(42);
+		SyntheticIndex generator = new SyntheticIndex(indexSpec.path("vocabulary").asInt(5000), seed);
+		Path indexDir = Files.createTempDirectory("ep-benchmark-index");
+
+		Map<String, Object> report = new LinkedHashMap<>();
+		report.put("date", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()));
+		report.put("environment", environment());
+		report.put("index", indexSpec);
+		List<Map<String, Object>> results = new ArrayList<>();
+		report.put("scenarios", results);
+		boolean failed = false;
+
+		try {
+			long start = System.nanoTime();
+			generator.write(indexDir, numDocs, indexSpec.path("wordsPerDocument").asInt(300));
+			System.out.printf("Generated %d documents in %.1fs%n", numDocs, (System.nanoTime() - start) / 1e9);
+
+			for(JsonNode scenario : spec.path("scenarios")){
+				Map<String, Object> result = runScenario(scenario, generator, indexDir, seed);
+				results.add(result);
+				System.out.println(mapper.writeValueAsString(result));
+				if (result.containsKey("failure")){
+					System.out.println("FAILED " + result.get("name") + ": " + result.get("failure"));
+					failed = true;
+				}
+			}
+		} finally {
+			FileUtils.deleteQuietly(indexDir.toFile());
+		}
+
+		File outputDir = new File("target/benchmarks");
+		outputDir.mkdirs();
+		File output = new File(outputDir, "search-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+		mapper.writeValue(output, report);
+		System.out.println("Results written to " + output.getPath());
+		System.exit(failed ? 1 : 0);
+	}
+
+	private static Map<String, Object> runScenario(JsonNode scenario, SyntheticIndex generator, Path indexDir,
+			long seed) throws Exception {
+		String name = scenario.path("name").asText("scenario");
+		int concurrency = scenario.path("concurrency").asInt(1);
+		int warmup = scenario.path("warmupSeconds").asInt(10);
+		int duration = scenario.path("durationSeconds").asInt(30);
+		String accept = scenario.hasNonNull("accept") ? scenario.get("accept").asText() : null;
+		double maxNotFoundShare = scenario.path("maxNotFoundShare").asDouble(MAX_NOT_FOUND_SHARE);
+		List<String> queries = queries(generator, scenario.path("mix"), scenario.path("queries").asInt(1000),
+				seed + name.hashCode());
+
+		Map<String, Object> config = new HashMap<>();
+		config.put("documentSearcher", "services.search.PapersIndexSearcher");
+		config.put("luceneIndexDir", indexDir.toAbsolutePath().toString());
+		config.put("search.citations.freshness.enabled", false);
+		config.put("search.timing.slowThreshold", "1 hour");
+		for(Iterator<Map.Entry<String, JsonNode>> it = scenario.path("config").fields(); it.hasNext(); ){
+			Map.Entry<String, JsonNode> entry = it.next();
+			config.put(entry.getKey(), entry.getValue().isNumber() ? entry.getValue().numberValue() :
+				entry.getValue().isBoolean() ? entry.getValue().booleanValue() : entry.getValue().asText());
+		}
+
+		System.out.printf("Running %s: %d clients, %ds warm-up, %ds%n", name, concurrency, warmup, duration);
+		Application application = new GuiceApplicationBuilder().configure(config).build();
+		TestServer server = Helpers.testServer(PORT, application);
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("name", name);
+		result.put("concurrency", concurrency);
+		result.put("queries", queries.size());
+		result.put("accept", accept);
+		result.put("config", scenario.path("config"));
+		try {
+			server.start();
+			result.putAll(new LoadGenerator("http://localhost:" + PORT)
+					.run(queries, concurrency, warmup, duration, accept, seed));
+		} finally {
+			server.stop();
+		}
+
+		double notFoundShare = (Double) result.get("notFoundShare");
+		System.out.printf("%s: %.1f%% of searches found no documents%n", name, 100 * notFoundShare);
+		if (notFoundShare > maxNotFoundShare)
+			result.put("failure", String.format("%.1f%% of searches found no documents (maximum %.1f%%)", 
+					100 * notFoundShare, 100 * maxNotFoundShare));
+		return result;
+	}
+
+	/**
+	 * Generates a pool of queries. Query kinds are drawn according to their
+	 * weight in the mix: a frequent word, a rare word, several words
+	 * or a quoted phrase of two consecutive words of an indexed document.
+	 */
+	private static List<String> queries(SyntheticIndex generator, JsonNode mix, int size, long seed) {
+		Map<String, Double> weights = new LinkedHashMap<>();
+		for(Iterator<Map.Entry<String, JsonNode>> it = mix.fields(); it.hasNext(); ){
+			Map.Entry<String, JsonNode> entry = it.next();
+			weights.put(entry.getKey(), entry.getValue().asDouble());
+		}
+		if (weights.isEmpty())
+			weights.put("frequent", 1.0);
+		double total = weights.values().stream().mapToDouble(Double::doubleValue).sum();
+
+		Random random = new Random(seed);
+		int vocabulary = generator.getVocabularySize();
+		List<String> queries = new ArrayList<>(size);
+		for(int i = 0; i < size; i++){
+			double r = random.nextDouble() * total;
+			String kind = null;
+			for(Map.Entry<String, Double> weight : weights.entrySet()){
+				kind = weight.getKey();
+				r -= weight.getValue();
+				if (r < 0)
+					break;
+			}
+			switch (kind) {
+			case "rare":
+				queries.add(generator.getWord(vocabulary / 2 + random.nextInt(vocabulary - vocabulary / 2)));
+				break;
+			case "multi":
+				queries.add(generator.getWord(generator.nextRank(random)) + " " +
+						generator.getWord(generator.nextRank(random)) + " " +
+						generator.getWord(generator.nextRank(random)));
+				break;
+			case "phrase":
+				queries.add("\"" + generator.getPhrase(random) + "\"");
+				break;
+			case "frequent":
+				queries.add(generator.getWord(random.nextInt(Math.min(50, vocabulary))));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown query kind: " + kind);
+			}
+		}
+		return queries;
+	}
+
+	private static Map<String, Object> environment() throws IOException {
+		Map<String, Object> env = new LinkedHashMap<>();
+		env.put("java", System.getProperty("java.version"));
+		env.put("vm", System.getProperty("java.vm.name"));
+		env.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+		env.put("processors", Runtime.getRuntime().availableProcessors());
+		env.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+		env.put("jvmArguments", ManagementFactory.getRuntimeMXBean().getInputArguments());
+		return env;
+	}
+}
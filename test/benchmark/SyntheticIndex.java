@@ -0,0 +1,196 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SortingMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import services.PapersIndexer;
+import services.References;
+import services.Utils;
+import services.search.StaticRankCollector;
+
+/**
+ * Generates a local index of synthetic papers with the same fields as
+ * {@link PapersIndexer}, so searches can be benchmarked without PDF
+ * parsing or a graph database.
+ * <p>Words are drawn from a fixed vocabulary, with no stop words, with a Zipf
+ * distribution, and citation counts from a power law, so there are frequent 
+ * and rare query terms and a skewed static rank, as in real collections. The
+ * same seed generates the same index.</p>
+ *
+ * @author jose
+ */
+public class SyntheticIndex {
+
+	private static final String[] SYLLABLES = { "ka", "lo", "mi", "ne", "ru", "sa", "te", "vi", "zo", "pa",
+			"de", "gu", "ri", "to", "ma", "shi", "ber", "col", "dan", "fer" };
+
+	private final Random random;
+
+	private final List<String> vocabulary;
+
+	private final double[] cumulative;
+
+	/**
+	 * Two consecutive body words of each generated document
+	 */
+	private final List<String> phrases = new ArrayList<>();
+
+	/**
+	 * @param vocabularySize number of distinct words
+	 * @param seed random seed
+	 */
+	public SyntheticIndex(int vocabularySize, long seed) {
+		this.random = new Random(seed);
+		this.vocabulary = new ArrayList<>(vocabularySize);
+		// Stop words are not indexed, searches for them would never match
+		for(int n = 0; vocabulary.size() < vocabularySize; n++){
+			String word = word(n);
+			if (!StandardAnalyzer.STOP_WORDS_SET.contains(word))
+				vocabulary.add(word);
+		}
+
+		// Zipf distribution (s = 1) over vocabulary ranks
+		cumulative = new double[vocabularySize];
+		double sum = 0;
+		for(int i = 0; i < vocabularySize; i++){
+			sum += 1.0 / (i + 1);
+			cumulative[i] = sum;
+		}
+		for(int i = 0; i < vocabularySize; i++)
+			cumulative[i] /= sum;
+	}
+
+	/**
+	 * @param rank vocabulary rank (0 is the most frequent word)
+	 * @return the word of the given rank
+	 */
+	public String getWord(int rank) {
+		return vocabulary.get(rank);
+	}
+
+	public int getVocabularySize() {
+		return vocabulary.size();
+	}
+
+	/**
+	 * @param random the random generator
+	 * @return two consecutive words of a generated document, so phrase
+	 * searches have at least one hit
+	 */
+	public String getPhrase(Random random) {
+		if (phrases.isEmpty())
+			throw new IllegalStateException("No documents generated");
+		return phrases.get(random.nextInt(phrases.size()));
+	}
+
+	/**
+	 * Writes the index, merged into a single segment sorted by static rank.
+	 * @param indexDir index directory
+	 * @param numDocs number of documents
+	 * @param wordsPerDoc number of body words of each document
+	 * @throws IOException if the index can't be written
+	 */
+	public void write(Path indexDir, int numDocs, int wordsPerDoc) throws IOException {
+		try (Directory dir = FSDirectory.open(indexDir)) {
+			IndexWriterConfig cfg = new IndexWriterConfig(new StandardAnalyzer());
+			cfg.setMergePolicy(new SortingMergePolicy(cfg.getMergePolicy(), StaticRankCollector.SORT));
+			cfg.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+			try (IndexWriter writer = new IndexWriter(dir, cfg)) {
+				for(int i = 0; i < numDocs; i++)
+					writer.addDocument(newDocument(i, wordsPerDoc));
+				writer.forceMerge(1);
+				writer.commit();
+			}
+		}
+	}
+
+	private Document newDocument(int id, int wordsPerDoc) {
+		String title = words(8);
+		String authors = word(random.nextInt(vocabulary.size())) + " " + word(random.nextInt(vocabulary.size()));
+		String year = String.valueOf(1990 + random.nextInt(27));
+		String file = "/papers/" + id + ".pdf";
+		// Power law citations: most papers are rarely cited
+		long citations = (long) Math.floor(Math.pow(1 - random.nextDouble(), -1.0 / 1.2)) - 1;
+
+		Document doc = new Document();
+		doc.add(new StringField("file", file, Store.YES));
+		doc.add(new BinaryDocValuesField("file", new BytesRef(file)));
+		doc.add(new StringField("title", title, Store.YES));
+		doc.add(new BinaryDocValuesField("title", new BytesRef(title)));
+		doc.add(new StringField("authors", authors, Store.YES));
+		doc.add(new BinaryDocValuesField("authors", new BytesRef(authors)));
+		doc.add(new StringField("year", year, Store.YES));
+		doc.add(new SortedSetDocValuesField("year", new BytesRef(year)));
+		String key = Utils.canonicalKey(null, title, authors, year);
+		if (key != null){
+			doc.add(new StringField("key", key, Store.YES));
+			doc.add(new BinaryDocValuesField("key", new BytesRef(key)));
+		}
+		doc.add(new StringField("id", String.valueOf(id), Store.YES));
+		String body = words(wordsPerDoc);
+		String[] bodyWords = body.split(" ");
+		if (bodyWords.length > 1){
+			int pos = id % (bodyWords.length - 1);
+			phrases.add(bodyWords[pos] + " " + bodyWords[pos + 1]);
+		}
+		doc.add(new TextField("body", title + " " + body, Store.NO));
+		doc.add(new NumericDocValuesField(StaticRankCollector.FIELD, citations + 1));
+		doc.add(new NumericDocValuesField(References.COUNT_FIELD, random.nextInt(40)));
+		doc.add(new NumericDocValuesField(PapersIndexer.MODIFIED_FIELD, System.currentTimeMillis()));
+		return doc;
+	}
+
+	private String words(int count) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; i++){
+			if (i > 0)
+				sb.append(' ');
+			sb.append(vocabulary.get(nextRank()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return a vocabulary rank drawn from the Zipf distribution
+	 */
+	public int nextRank() {
+		return nextRank(random);
+	}
+
+	/**
+	 * @param random the random generator
+	 * @return a vocabulary rank drawn from the Zipf distribution
+	 */
+	public int nextRank(Random random) {
+		int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+		return rank >= 0 ? rank : Math.min(-rank - 1, cumulative.length - 1);
+	}
+
+	private static String word(int n) {
+		StringBuilder sb = new StringBuilder();
+		do {
+			sb.append(SYLLABLES[n % SYLLABLES.length]);
+			n /= SYLLABLES.length;
+		} while (n > 0);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,51 @@
+package services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class UtilsTest {
+
+	@Test
+	public void canonicalKeyOfDoiIgnoresResolverAndCase() {
+		assertEquals("doi:10.1000/abc", Utils.canonicalKey("https://doi.org/10.1000/ABC", "Title", null, null));
+		assertEquals("doi:10.1000/abc", Utils.canonicalKey("doi: 10.1000/abc", null, null, null));
+	}
+
+	@Test
+	public void canonicalKeyOfNonLatinTitles() {
+		String chinese = Utils.canonicalKey(null, "深度学习的文本聚类", "王 伟", "2015");
+		String russian = Utils.canonicalKey(null, "Кластеризация документов", "Иванов И.", "2012");
+		String greek = Utils.canonicalKey(null, "Ομαδοποίηση κειμένων", null, null);
+		assertNotNull(chinese);
+		assertNotNull(russian);
+		assertNotNull(greek);
+		assertNotEquals(chinese, russian);
+		assertNotEquals(chinese, Utils.canonicalKey(null, "深度学习的图像分类", "王 伟", "2015"));
+	}
+
+	@Test
+	public void canonicalKeyIgnoresAccentsPunctuationAndCase() {
+		assertEquals(Utils.canonicalKey(null, "Análise de Agrupamentos: uma revisão", "Silva J.", "2010"),
+				Utils.canonicalKey(null, "analise de agrupamentos - uma  revisao.", "Silva J.", "2010"));
+		assertEquals(Utils.canonicalKey(null, "Кластеризация документов", null, null),
+				Utils.canonicalKey(null, "КЛАСТЕРИЗАЦИЯ, документов!", null, null));
+	}
+
+	@Test
+	public void canonicalKeyOfPunctuationOnlyTitleIsNull() {
+		assertNull(Utils.canonicalKey(null, "?!... --", "Silva J.", "2010"));
+		assertNull(Utils.canonicalKey(null, "", null, null));
+		assertNull(Utils.canonicalKey(null, null, null, null));
+	}
+
+	@Test
+	public void normalizeTextKeepsLettersAndDigitsOfAnyScript() {
+		assertEquals("naive bayes 2 0", Utils.normalizeText("Naïve Bayes, 2.0"));
+		assertEquals("кластеризация документов", Utils.normalizeText("Кластеризация — документов"));
+		assertEquals("", Utils.normalizeText("¿…!"));
+	}
+}